@@ -0,0 +1,118 @@
+package checkers.runtime.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import checkers.runtime.rt.AllocationProfiler;
+import checkers.runtime.rt.Sampler;
+
+// The per-thread runtime state (creation stacks, sampling countdowns,
+// allocation accumulators) under many short-lived threads. Each invocation
+// runs exactly OPS creation events split over "threads" threads (the first
+// OPS % threads threads run one more). Uses virtual threads where the JVM
+// has them (Java 21 and later) and platform threads otherwise; the larger
+// counts are only practical with virtual threads. Run with the
+// "bench-runtime" target.
+//
+// Starting the threads costs something too, and at a million threads it
+// dominates. spawnOnly starts and joins the same threads without doing any
+// work, so the runtime's own cost per operation is creations minus
+// spawnOnly at the same thread count; that difference is what should stay
+// flat as the thread count grows.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ContextBenchmark {
+    static final int OPS = 1 << 24;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int threads;
+
+    private ThreadFactory factory;
+    private AllocationProfiler runtime;
+
+    @Setup
+    public void setup() {
+        factory = virtualThreadFactory();
+        runtime = new AllocationProfiler();
+    }
+
+    // Thread.ofVirtual().factory(), looked up reflectively so that this
+    // compiles for older Java levels.
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory)Class.forName("java.lang.Thread$Builder")
+                .getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r);
+                }
+            };
+        }
+    }
+
+    // The number of events thread t runs, so that they add up to OPS.
+    private int share(int t) {
+        return OPS / threads + (t < OPS % threads ? 1 : 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void creations() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(threads);
+        final Object creator = this;
+        for (int t = 0; t < threads; t++) {
+            final int n = share(t);
+            factory.newThread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < n; i++) {
+                        if (Sampler.every(16)) {
+                            int before = runtime.beforeCreation(
+                                creator, false, 16, 0, 0);
+                            Object created = new Object();
+                            runtime.enterConstructor(created);
+                            runtime.wrappedNew(before, created, creator);
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+    }
+
+    // The control: the same threads, started and joined the same way,
+    // with no runtime calls.
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void spawnOnly() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            factory.newThread(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,97 @@
+package checkers.runtime.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import checkers.runtime.rt.EventPipeline;
+import checkers.runtime.rt.EventSink;
+
+// EventPipeline.record() from many short-lived threads, each of which
+// records OPS / threads events and exits. With many threads every thread
+// records a few events only, so this measures what a thread's first events
+// cost (its buffer and ring) and how the consumer copes with retiring the
+// buffers of threads that have exited; with few threads it is the steady
+// state of record(). Compare with ContextBenchmark.spawnOnly at the same
+// thread count for the cost of the threads themselves. Prints the number
+// of dropped events after each iteration. Run with the "bench-runtime"
+// target.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EventPipelineBenchmark {
+    static final int OPS = 1 << 22;
+
+    @Param({"10", "1000", "100000"})
+    public int threads;
+
+    private ThreadFactory factory;
+    private EventPipeline pipeline;
+    private long consumed;
+
+    @Setup(Level.Trial)
+    public void setupFactory() {
+        factory = ContextBenchmark.virtualThreadFactory();
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        consumed = 0;
+        pipeline = new EventPipeline(new EventSink() {
+            public void consume(long[] records, int offset, int count) {
+                consumed += count;
+            }
+
+            public void close() {
+            }
+        });
+        pipeline.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        pipeline.stop();
+        System.out.println("consumed " + consumed + ", dropped " +
+                           pipeline.dropped());
+    }
+
+    private int share(int t) {
+        return OPS / threads + (t < OPS % threads ? 1 : 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void record() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int n = share(t);
+            final int site = t;
+            factory.newThread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < n; i++)
+                        pipeline.record(EventPipeline.NEW, site, i);
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,72 @@
+package checkers.runtime.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Runs the Kernels under JMH. Whether they are instrumented depends only on
+// which build of Kernels is on the classpath; see the "bench" target in
+// build.xml.
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class KernelBenchmark {
+    @Param({"1000"})
+    public int size;
+
+    private double[] doubles;
+    private List<Object> items;
+
+    @Setup
+    public void setup() {
+        doubles = new double[size];
+        items = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+            doubles[i] = i * 0.5;
+            if (i % 2 == 0)
+                items.add("item" + i);
+            else
+                items.add(Integer.valueOf(i));
+        }
+    }
+
+    @Benchmark
+    public long primitiveLoop() {
+        return Kernels.primitiveLoop(size);
+    }
+
+    @Benchmark
+    public double doubleLoop() {
+        return Kernels.doubleLoop(doubles);
+    }
+
+    @Benchmark
+    public int castHeavy() {
+        return Kernels.castHeavy(items);
+    }
+
+    @Benchmark
+    public int invariantChecks() {
+        return Kernels.invariantChecks("item0", items);
+    }
+
+    @Benchmark
+    public long allocHeavy() {
+        return Kernels.allocHeavy(size);
+    }
+}
@@ -0,0 +1,163 @@
+package checkers.runtime.bench;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import checkers.runtime.rt.WeakIdentityMap;
+
+// Per-object metadata maps under the instrumentation's access pattern: a
+// put for every new object and several gets of live ones, from several
+// threads. Each thread keeps a window of LIVE recent objects.
+//
+// allocateAndQuery removes the oldest object when it creates a new one, so
+// the maps that hold their keys strongly do not grow without bound; it
+// compares WeakIdentityMap with the JDK maps one would reach for first.
+// allocateAndDrop only forgets the oldest object, as instrumented code
+// does, and leaves it to the weak maps to notice that it was collected. It
+// runs the weak maps only, and prints how many entries each still retains
+// at the end of an iteration: the live window plus whatever has not been
+// reclaimed yet. Run with the "bench-runtime" target.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+public class MetadataMapBenchmark {
+    static final int LIVE = 4096;
+    static final int GETS = 4;
+
+    interface MetaMap {
+        void put(Object key, Boolean value);
+        Boolean get(Object key);
+        void remove(Object key);
+        int size();
+    }
+
+    static MetaMap wrap(final Map<Object, Boolean> m) {
+        return new MetaMap() {
+            public void put(Object key, Boolean value) { m.put(key, value); }
+            public Boolean get(Object key) { return m.get(key); }
+            public void remove(Object key) { m.remove(key); }
+            public int size() { return m.size(); }
+        };
+    }
+
+    static MetaMap create(String impl) {
+        if (impl.equals("weakIdentity")) {
+            final WeakIdentityMap<Boolean> m = new WeakIdentityMap<Boolean>();
+            return new MetaMap() {
+                public void put(Object key, Boolean value) { m.put(key, value); }
+                public Boolean get(Object key) { return m.get(key); }
+                public void remove(Object key) { m.remove(key); }
+                // Counts entries whose keys are collected but not yet
+                // expunged: they are still retained.
+                public int size() { return m.size(); }
+            };
+        } else if (impl.equals("synchronizedWeakHashMap")) {
+            // Weak, but compares keys with equals().
+            return wrap(Collections.synchronizedMap(
+                new WeakHashMap<Object, Boolean>()));
+        } else if (impl.equals("synchronizedIdentityHashMap")) {
+            // Identity, but strong.
+            return wrap(Collections.synchronizedMap(
+                new IdentityHashMap<Object, Boolean>()));
+        } else {
+            // Strong, and identity only for classes without equals().
+            return wrap(new ConcurrentHashMap<Object, Boolean>());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class AllMaps {
+        @Param({"weakIdentity", "synchronizedWeakHashMap",
+                "synchronizedIdentityHashMap", "concurrentHashMap"})
+        public String impl;
+
+        MetaMap map;
+
+        @Setup
+        public void setup() {
+            map = create(impl);
+        }
+    }
+
+    // Only the maps that hold their keys weakly; the strong ones would
+    // grow until the heap ran out.
+    @State(Scope.Benchmark)
+    public static class WeakMaps {
+        @Param({"weakIdentity", "synchronizedWeakHashMap"})
+        public String impl;
+
+        MetaMap map;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            map = create(impl);
+        }
+
+        @TearDown(Level.Iteration)
+        public void retained() {
+            System.out.println("retained entries: " + map.size() +
+                               " (live window " + LIVE + " per thread)");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Window {
+        final Object[] live = new Object[LIVE];
+        int next = 0;
+        int probe = 0;
+    }
+
+    @Benchmark
+    public boolean allocateAndQuery(AllMaps maps, Window w) {
+        MetaMap map = maps.map;
+        Object old = w.live[w.next];
+        if (old != null)
+            map.remove(old);
+        return putAndQuery(map, w);
+    }
+
+    @Benchmark
+    public boolean allocateAndDrop(WeakMaps maps, Window w) {
+        // The old object is overwritten in the window below and becomes
+        // garbage with its entry still in the map.
+        return putAndQuery(maps.map, w);
+    }
+
+    private static boolean putAndQuery(MetaMap map, Window w) {
+        Object o = new Object();
+        map.put(o, Boolean.TRUE);
+        w.live[w.next] = o;
+        w.next = (w.next + 1) & (LIVE - 1);
+
+        boolean all = true;
+        for (int i = 0; i < GETS; i++) {
+            w.probe = (w.probe + 97) & (LIVE - 1);
+            Object k = w.live[w.probe];
+            if (k != null)
+                all &= map.get(k) != null;
+        }
+        return all;
+    }
+}
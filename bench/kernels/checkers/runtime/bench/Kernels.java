@@ -0,0 +1,77 @@
+package checkers.runtime.bench;
+
+import java.util.List;
+
+// The code under measurement. This class is compiled three times: with plain
+// javac, with BenchChecker, and with BenchChecker and -Ajillhoist. The JMH
+// harness in bench/jmh calls it without knowing which variant is on the
+// classpath.
+public class Kernels {
+    // Loops over primitive locals: the worst case for __REF__ wrapping.
+    public static long primitiveLoop(int n) {
+        long sum = 0;
+        int a = 1;
+        int b = 2;
+        for (int i = 0; i < n; i++) {
+            int t = a + b;
+            a = b;
+            b = t & 0xFFFF;
+            sum += t;
+        }
+        return sum;
+    }
+
+    public static double doubleLoop(double[] xs) {
+        double acc = 0.0;
+        for (int i = 0; i < xs.length; i++) {
+            double x = xs[i];
+            acc += x * x;
+        }
+        return acc;
+    }
+
+    // Cast-heavy collection code.
+    public static int castHeavy(List<Object> items) {
+        int total = 0;
+        for (Object o : items) {
+            if (o instanceof String) {
+                total += ((String) o).length();
+            } else if (o instanceof Integer) {
+                total += ((Integer) o).intValue();
+            }
+        }
+        return total;
+    }
+
+    // Checks of a value the loop never changes: with -Ajillhoist, only the
+    // first iteration's reach the runtime.
+    public static int invariantChecks(Object key, List<Object> items) {
+        int hits = 0;
+        for (Object o : items) {
+            if (key instanceof String && o.equals(key))
+                hits += ((String) key).length();
+        }
+        return hits;
+    }
+
+    // Allocation-heavy constructors.
+    public static final class Point {
+        final int x;
+        final int y;
+        Point(int x, int y) {
+            int sx = x;
+            int sy = y;
+            this.x = sx;
+            this.y = sy;
+        }
+    }
+
+    public static long allocHeavy(int n) {
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            Point p = new Point(i, i + 1);
+            sum += p.x + p.y;
+        }
+        return sum;
+    }
+}
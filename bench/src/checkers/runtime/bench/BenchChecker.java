@@ -0,0 +1,15 @@
+package checkers.runtime.bench;
+
+import checkers.quals.TypeQualifiers;
+import checkers.quals.Unqualified;
+import checkers.runtime.InstrumentingChecker;
+
+// The checker used to build the instrumented variant of the benchmark
+// kernels.
+@TypeQualifiers({Unqualified.class})
+public class BenchChecker extends InstrumentingChecker {
+    @Override
+    public BenchInstrumentor getInstrumentor() {
+        return new BenchInstrumentor();
+    }
+}
@@ -0,0 +1,50 @@
+package checkers.runtime.bench;
+
+import checkers.runtime.Instrumentor;
+
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.util.List;
+
+// Instruments casts and instanceof tests with calls to BenchRuntime, and
+// (by inheriting the default observesLocal* answers) wraps every local in a
+// reference, so the benchmarks measure the full cost of the translation.
+public class BenchInstrumentor extends Instrumentor {
+    final static String rtclass = BenchRuntime.class.getName();
+
+    private JCTree.JCExpression call(String hook, JCTree.JCExpression expr,
+                                     int site) {
+        return translator.maker.Apply(
+            null,
+            translator.dotsExp(rtclass + "." + hook),
+            List.<JCTree.JCExpression>of(expr, translator.intExp(site))
+        );
+    }
+
+    @Override
+    public JCTree.JCExpression instCast(JCTree.JCTypeCast cast, int site) {
+        return call("didCast", cast, site);
+    }
+
+    @Override
+    public JCTree.JCExpression instInstanceOf(JCTree.JCInstanceOf expr,
+                                              int site) {
+        return call("didInstanceOf", expr, site);
+    }
+
+    @Override
+    public JCTree.JCStatement instRepeated(JCTree event, int site,
+                                           JCTree.JCExpression count) {
+        String hook;
+        if (event instanceof JCTree.JCTypeCast)
+            hook = "repeatedCasts";
+        else if (event instanceof JCTree.JCInstanceOf)
+            hook = "repeatedInstanceOfs";
+        else
+            return null;
+        return translator.maker.Exec(translator.maker.Apply(
+            null,
+            translator.dotsExp(rtclass + "." + hook),
+            List.<JCTree.JCExpression>of(count)
+        ));
+    }
+}
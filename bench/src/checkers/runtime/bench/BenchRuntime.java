@@ -0,0 +1,28 @@
+package checkers.runtime.bench;
+
+// A deliberately cheap runtime: the hooks just count events, so that the
+// benchmarks measure the instrumentation rather than the runtime.
+public class BenchRuntime {
+    public static long casts = 0;
+    public static long instanceOfs = 0;
+
+    public static Object didCast(Object value, int site) {
+        casts++;
+        return value;
+    }
+
+    public static boolean didInstanceOf(boolean value, int site) {
+        instanceOfs++;
+        return value;
+    }
+
+    // Batches from loops compiled with -Ajillhoist.
+
+    public static void repeatedCasts(long count) {
+        casts += count;
+    }
+
+    public static void repeatedInstanceOfs(long count) {
+        instanceOfs += count;
+    }
+}
@@ -0,0 +1,71 @@
+package checkers.runtime.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+// Generates a synthetic corpus for measuring compile-time throughput of the
+// translators: N classes, each with a few methods of many statements mixing
+// primitive locals, casts, instanceof tests and an anonymous class. The
+// output is deterministic, so timings are comparable across runs.
+//
+// Usage: CorpusGenerator OUTDIR CLASSES STATEMENTS
+public class CorpusGenerator {
+    static final String PACKAGE = "corpus";
+    static final int METHODS = 4;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("usage: CorpusGenerator OUTDIR CLASSES STATEMENTS");
+            System.exit(1);
+        }
+        File dir = new File(args[0], PACKAGE);
+        int classes = Integer.parseInt(args[1]);
+        int statements = Integer.parseInt(args[2]);
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("could not create " + dir);
+        for (int i = 0; i < classes; i++)
+            writeClass(dir, i, statements);
+    }
+
+    static void writeClass(File dir, int index, int statements)
+            throws IOException {
+        String name = "Gen" + index;
+        PrintWriter out = new PrintWriter(new FileWriter(new File(dir, name + ".java")));
+        try {
+            out.println("package " + PACKAGE + ";");
+            out.println();
+            out.println("public class " + name + " {");
+            for (int m = 0; m < METHODS; m++) {
+                out.println("    public static long m" + m + "(Object o, int n) {");
+                out.println("        long acc = n;");
+                out.println("        Runnable r = new Runnable() { public void run() { } };");
+                for (int s = 0; s < statements; s++) {
+                    switch (s % 4) {
+                    case 0:
+                        out.println("        int v" + s + " = n + " + s + ";");
+                        out.println("        acc += v" + s + ";");
+                        break;
+                    case 1:
+                        out.println("        if (o instanceof String) acc += ((String) o).length();");
+                        break;
+                    case 2:
+                        out.println("        Object x" + s + " = (Object) o;");
+                        break;
+                    default:
+                        out.println("        for (int i" + s + " = 0; i" + s + " < n; i" + s + "++) acc ^= i" + s + ";");
+                        break;
+                    }
+                }
+                out.println("        r.run();");
+                out.println("        return acc;");
+                out.println("    }");
+            }
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+}
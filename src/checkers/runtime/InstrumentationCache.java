@@ -0,0 +1,633 @@
+package checkers.runtime;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An incremental front end for instrumented compilation. An annotation
+ * processor cannot stop javac from emitting class files, so the cache works
+ * around the compiler instead: it only hands javac the compilation units
+ * that need retranslating, and restores the instrumented class files of all
+ * other units from an on-disk cache.
+ *
+ * A unit's cache key hashes its source together with the javac options and
+ * the contents of the processor path (which is where the checker and its
+ * Instrumentor live) and of the classpath (whose classes the units are
+ * attributed against), so changing any of them invalidates everything. A
+ * unit is recompiled when its key changes or when any unit it depends on,
+ * directly or transitively, is recompiled or removed. Dependencies are
+ * recorded by the checker itself through -Ajilldeps, as the binary names of
+ * the classes a unit refers to; names that belong to no unit (the JDK, the
+ * classpath) are covered by the key instead. The class files of removed
+ * units, and the old ones of recompiled units, are deleted from OUTDIR.
+ *
+ * Instrumented class files have their site IDs baked in, so a reused unit
+ * keeps its IDs, and recompiled units are numbered after all reused ones
+ * (through -Ajillsitebase). If -Ajillsites=FILE is given, each unit's rows
+ * are cached with its class files, and FILE is reassembled from them after
+ * every build; IDs that no unit uses any more get "unused" rows, so the
+ * table stays dense. Once such gaps outnumber the live IDs, everything is
+ * recompiled to start numbering afresh.
+ *
+ * Usage:
+ *   java checkers.runtime.InstrumentationCache CACHEDIR OUTDIR JAVAC [OPTION...] -- SOURCE...
+ *
+ * where JAVAC is the compiler command (e.g., bin/jxjavac) and the options
+ * include the -processor to run. Do not pass -d; OUTDIR is used.
+ */
+public class InstrumentationCache {
+    private static final String MANIFEST = "manifest";
+    private static final String DEPS = "deps.tmp";
+    private static final String CLASSES = "classes";
+    private static final String SITES = "sites";
+
+    // What we know about a unit from the last build.
+    private static class Unit {
+        String key;
+        List<String> classes = new ArrayList<String>(); // Binary names.
+        Set<String> deps = new HashSet<String>(); // Binary names.
+        List<int[]> sites = new ArrayList<int[]>(); // [first, end) IDs.
+    }
+
+    private final File cacheDir;
+    private final File outDir;
+    private final List<String> javac;
+    private final List<String> options;
+    private final List<String> sources = new ArrayList<String>();
+    private Map<String, Unit> manifest = new LinkedHashMap<String, Unit>();
+    // The -Ajillsites file, or null.
+    private final File sitesFile;
+    // Units recompiled by the last build().
+    private int recompiled = 0;
+
+    public InstrumentationCache(File cacheDir, File outDir,
+                                List<String> javac, List<String> options,
+                                List<String> sources) throws IOException {
+        this.cacheDir = cacheDir;
+        this.outDir = outDir;
+        this.javac = javac;
+        this.options = options;
+        for (String source : sources)
+            this.sources.add(new File(source).getCanonicalPath());
+        File sites = null;
+        String prefix = "-A" + InstrumentingChecker.SITES_FLAG + "=";
+        for (String opt : options) {
+            if (opt.startsWith(prefix))
+                sites = new File(opt.substring(prefix.length()));
+        }
+        sitesFile = sites;
+    }
+
+    /** The number of units the last build() recompiled. */
+    public int recompiled() {
+        return recompiled;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sep = java.util.Arrays.asList(args).indexOf("--");
+        if (args.length < 3 || sep < 3) {
+            System.err.println("usage: InstrumentationCache CACHEDIR OUTDIR " +
+                               "JAVAC [OPTION...] -- SOURCE...");
+            System.exit(2);
+        }
+        List<String> javac = new ArrayList<String>();
+        javac.add(args[2]);
+        List<String> options = new ArrayList<String>();
+        for (int i = 3; i < sep; i++)
+            options.add(args[i]);
+        List<String> sources = new ArrayList<String>();
+        for (int i = sep + 1; i < args.length; i++)
+            sources.add(args[i]);
+
+        InstrumentationCache cache = new InstrumentationCache(
+            new File(args[0]), new File(args[1]), javac, options, sources);
+        System.exit(cache.build());
+    }
+
+    /**
+     * Bring OUTDIR up to date, returning javac's exit status (or 0 if it did
+     * not need to run).
+     */
+    public int build() throws IOException, InterruptedException {
+        if (!outDir.isDirectory() && !outDir.mkdirs())
+            throw new IOException("could not create " + outDir);
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs())
+            throw new IOException("could not create " + cacheDir);
+        readManifest();
+
+        String salt = salt();
+        Map<String, String> keys = new HashMap<String, String>();
+        for (String source : sources)
+            keys.put(source, hash(salt, new File(source)));
+
+        Set<String> stale = staleUnits(keys);
+        int siteBase = siteBase(stale);
+        if (siteBase < 0) {
+            stale.addAll(sources);
+            siteBase = 0;
+        }
+        removeOutdated(stale);
+        for (String source : sources) {
+            if (!stale.contains(source))
+                restore(manifest.get(source));
+        }
+        recompiled = stale.size();
+        System.err.println("instrumentation cache: " +
+                           (sources.size() - stale.size()) + " reused, " +
+                           stale.size() + " recompiled");
+        if (stale.isEmpty()) {
+            writeSites();
+            writeManifest();
+            return 0;
+        }
+
+        int status = compile(stale, siteBase);
+        if (status == 0) {
+            for (String source : stale)
+                manifest.remove(source);
+            readDeps(keys, stale);
+            Map<Integer, String> rows = readSiteRows(sitesFile);
+            for (String source : stale) {
+                Unit unit = manifest.get(source);
+                if (unit != null) {
+                    store(unit);
+                    storeSites(source, unit, rows);
+                }
+            }
+            writeSites();
+        }
+        writeManifest();
+        return status;
+    }
+
+    // The units that must be recompiled: changed or new ones, and then,
+    // until nothing changes, everything depending on a stale or removed
+    // unit.
+    private Set<String> staleUnits(Map<String, String> keys) {
+        // Which unit, as of the last build, defined each class. Removed
+        // units are still in the manifest.
+        Map<String, String> classUnits = new HashMap<String, String>();
+        for (Map.Entry<String, Unit> entry : manifest.entrySet()) {
+            for (String cls : entry.getValue().classes)
+                classUnits.put(cls, entry.getKey());
+        }
+
+        Set<String> stale = new HashSet<String>();
+        for (String source : sources) {
+            Unit unit = manifest.get(source);
+            if (unit == null || !unit.key.equals(keys.get(source)) ||
+                    !cachedClassesExist(unit) ||
+                    !cachedSitesExist(source, unit))
+                stale.add(source);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (String source : sources) {
+                if (stale.contains(source))
+                    continue;
+                for (String dep : manifest.get(source).deps) {
+                    String depUnit = classUnits.get(dep);
+                    if (depUnit == null)
+                        continue; // Not ours.
+                    if (stale.contains(depUnit) ||
+                            !keys.containsKey(depUnit)) {
+                        stale.add(source);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return stale;
+    }
+
+    // Delete the class files of removed and stale units from OUTDIR, so
+    // that classes a unit no longer defines do not linger there, and drop
+    // removed units from the manifest.
+    private void removeOutdated(Set<String> stale) {
+        Set<String> current = new HashSet<String>(sources);
+        List<String> removed = new ArrayList<String>();
+        for (Map.Entry<String, Unit> entry : manifest.entrySet()) {
+            String source = entry.getKey();
+            if (current.contains(source) && !stale.contains(source))
+                continue;
+            for (String cls : entry.getValue().classes) {
+                for (String rel : classFiles(outDir, cls))
+                    new File(outDir, rel).delete();
+            }
+            if (!current.contains(source))
+                removed.add(source);
+        }
+        for (String source : removed)
+            manifest.remove(source);
+    }
+
+    // The first site ID for recompiled units: the end of the reused units'
+    // IDs. Returns -1 if the IDs no unit uses would outnumber the live ones.
+    private int siteBase(Set<String> stale) {
+        int end = 0;
+        int live = 0;
+        for (String source : sources) {
+            if (stale.contains(source))
+                continue;
+            for (int[] range : manifest.get(source).sites) {
+                end = Math.max(end, range[1]);
+                live += range[1] - range[0];
+            }
+        }
+        return end - live > live ? -1 : end;
+    }
+
+    private int compile(Set<String> stale, int siteBase)
+            throws IOException, InterruptedException {
+        File depsFile = new File(cacheDir, DEPS);
+        depsFile.delete();
+        if (sitesFile != null)
+            sitesFile.delete(); // So only the new rows are read back.
+
+        List<String> command = new ArrayList<String>(javac);
+        boolean hasClasspath = false;
+        for (int i = 0; i < options.size(); i++) {
+            String opt = options.get(i);
+            command.add(opt);
+            if ((opt.equals("-cp") || opt.equals("-classpath")) &&
+                    i + 1 < options.size()) {
+                // Let the stale units see the restored classes.
+                command.add(options.get(++i) + File.pathSeparator + outDir);
+                hasClasspath = true;
+            }
+        }
+        if (!hasClasspath) {
+            command.add("-classpath");
+            command.add(outDir.getPath());
+        }
+        command.add("-d");
+        command.add(outDir.getPath());
+        command.add("-A" + InstrumentingChecker.DEPS_FLAG + "=" + depsFile);
+        command.add("-A" + InstrumentingChecker.SITE_BASE_FLAG + "=" +
+                    siteBase);
+        for (String source : sources) {
+            if (stale.contains(source))
+                command.add(source);
+        }
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+        Process proc = pb.start();
+        copy(proc.getInputStream(), System.err);
+        return proc.waitFor();
+    }
+
+    // Merge the checker's dependency records for the recompiled units into
+    // the manifest.
+    private void readDeps(Map<String, String> keys, Set<String> stale)
+            throws IOException {
+        File depsFile = new File(cacheDir, DEPS);
+        if (!depsFile.exists())
+            return;
+        BufferedReader in = new BufferedReader(new FileReader(depsFile));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] cols = line.split("\t", -1);
+                if (cols.length != 5)
+                    continue;
+                String source = new File(cols[0]).getCanonicalPath();
+                if (!stale.contains(source))
+                    continue;
+                Unit unit = manifest.get(source);
+                if (unit == null) {
+                    unit = new Unit();
+                    unit.key = keys.get(source);
+                    manifest.put(source, unit);
+                }
+                unit.classes.add(cols[1]);
+                for (String dep : cols[2].split(";")) {
+                    if (dep.length() > 0)
+                        unit.deps.add(dep);
+                }
+                int first = Integer.parseInt(cols[3]);
+                int end = Integer.parseInt(cols[4]);
+                if (end > first)
+                    unit.sites.add(new int[] { first, end });
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // The class files belonging to a unit's top-level class: Outer.class and
+    // Outer$*.class.
+    private static List<String> classFiles(File root, String binaryName) {
+        List<String> files = new ArrayList<String>();
+        String path = binaryName.replace('.', File.separatorChar);
+        File dir = new File(root, path).getParentFile();
+        String simple = new File(path).getName();
+        File[] entries = dir == null ? null : dir.listFiles();
+        if (entries == null)
+            return files;
+        String rel = path.substring(0, path.length() - simple.length());
+        for (File f : entries) {
+            String name = f.getName();
+            if (name.equals(simple + ".class") ||
+                    (name.startsWith(simple + "$") && name.endsWith(".class")))
+                files.add(rel + name);
+        }
+        return files;
+    }
+
+    private File unitDir(Unit unit) {
+        return new File(new File(cacheDir, CLASSES), unit.key);
+    }
+
+    private boolean cachedClassesExist(Unit unit) {
+        for (String cls : unit.classes) {
+            if (classFiles(unitDir(unit), cls).isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    // A unit's site rows are cached next to its class files, under a name
+    // taken from its path (units with the same content share a key).
+    private File unitSites(String source, Unit unit) {
+        MessageDigest md = digest();
+        md.update(bytes(source));
+        return new File(unitDir(unit), SITES + "-" + hex(md.digest()));
+    }
+
+    private boolean cachedSitesExist(String source, Unit unit) {
+        return sitesFile == null || unit.sites.isEmpty() ||
+            unitSites(source, unit).isFile();
+    }
+
+    // Rows of a site table by ID; empty if there is no file.
+    private static Map<Integer, String> readSiteRows(File file)
+            throws IOException {
+        Map<Integer, String> rows = new HashMap<Integer, String>();
+        if (file == null || !file.isFile())
+            return rows;
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0)
+                    rows.put(Integer.parseInt(line.substring(0, tab)), line);
+            }
+        } finally {
+            in.close();
+        }
+        return rows;
+    }
+
+    private void storeSites(String source, Unit unit,
+                            Map<Integer, String> rows) throws IOException {
+        if (sitesFile == null || unit.sites.isEmpty())
+            return;
+        File file = unitSites(source, unit);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("could not create " + parent);
+        PrintWriter out = new PrintWriter(file);
+        try {
+            for (int[] range : unit.sites) {
+                for (int id = range[0]; id < range[1]; id++) {
+                    String row = rows.get(id);
+                    if (row == null)
+                        throw new IOException("site " + id + " missing from " +
+                                              sitesFile);
+                    out.println(row);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Reassemble the site table from the units' cached rows.
+    private void writeSites() throws IOException {
+        if (sitesFile == null)
+            return;
+        Map<Integer, String> rows = new HashMap<Integer, String>();
+        int end = 0;
+        for (String source : sources) {
+            Unit unit = manifest.get(source);
+            if (unit == null || unit.sites.isEmpty())
+                continue;
+            rows.putAll(readSiteRows(unitSites(source, unit)));
+            for (int[] range : unit.sites)
+                end = Math.max(end, range[1]);
+        }
+        PrintWriter out = new PrintWriter(sitesFile);
+        try {
+            for (int id = 0; id < end; id++) {
+                String row = rows.get(id);
+                out.println(row != null ? row : id + "\tunused\t\t0\t\t\t");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void store(Unit unit) throws IOException {
+        for (String cls : unit.classes) {
+            for (String rel : classFiles(outDir, cls))
+                copyFile(new File(outDir, rel), new File(unitDir(unit), rel));
+        }
+    }
+
+    private void restore(Unit unit) throws IOException {
+        for (String cls : unit.classes) {
+            for (String rel : classFiles(unitDir(unit), cls))
+                copyFile(new File(unitDir(unit), rel), new File(outDir, rel));
+        }
+    }
+
+    // Manifest rows:
+    //   source <tab> key <tab> class,class <tab> dep;dep <tab> first-end,...
+    private void readManifest() throws IOException {
+        File file = new File(cacheDir, MANIFEST);
+        if (!file.exists())
+            return;
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] cols = line.split("\t", -1);
+                if (cols.length != 5)
+                    continue; // Treat damaged rows as missing.
+                Unit unit = new Unit();
+                unit.key = cols[1];
+                for (String cls : cols[2].split(","))
+                    if (cls.length() > 0)
+                        unit.classes.add(cls);
+                for (String dep : cols[3].split(";"))
+                    if (dep.length() > 0)
+                        unit.deps.add(dep);
+                for (String range : cols[4].split(",")) {
+                    int dash = range.indexOf('-');
+                    if (dash > 0)
+                        unit.sites.add(new int[] {
+                            Integer.parseInt(range.substring(0, dash)),
+                            Integer.parseInt(range.substring(dash + 1)) });
+                }
+                manifest.put(cols[0], unit);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        PrintWriter out = new PrintWriter(new File(cacheDir, MANIFEST));
+        try {
+            for (Map.Entry<String, Unit> entry : manifest.entrySet()) {
+                Unit unit = entry.getValue();
+                List<String> ranges = new ArrayList<String>();
+                for (int[] range : unit.sites)
+                    ranges.add(range[0] + "-" + range[1]);
+                out.println(entry.getKey() + "\t" + unit.key + "\t" +
+                            join(unit.classes, ",") + "\t" +
+                            join(unit.deps, ";") + "\t" +
+                            join(ranges, ","));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String join(Iterable<String> items, String sep) {
+        StringBuilder sb = new StringBuilder();
+        for (String item : items) {
+            if (sb.length() > 0)
+                sb.append(sep);
+            sb.append(item);
+        }
+        return sb.toString();
+    }
+
+    // Everything besides the source that affects a unit's translation: the
+    // compiler command, its options, and the contents of the processor path
+    // and the classpath.
+    private String salt() throws IOException {
+        MessageDigest md = digest();
+        for (String arg : javac)
+            md.update(bytes(arg + "\0"));
+        for (String opt : options)
+            md.update(bytes(opt + "\0"));
+        for (int i = 0; i + 1 < options.size(); i++) {
+            String opt = options.get(i);
+            if (opt.equals("-processorpath") || opt.equals("-cp") ||
+                    opt.equals("-classpath")) {
+                for (String entry : options.get(++i).split(File.pathSeparator)) {
+                    // OUTDIR changes with every build, and is ours anyway.
+                    File file = new File(entry);
+                    if (!file.getCanonicalFile().equals(
+                            outDir.getCanonicalFile()))
+                        digestTree(md, file);
+                }
+            }
+        }
+        return hex(md.digest());
+    }
+
+    private static void digestTree(MessageDigest md, File file)
+            throws IOException {
+        if (file.isDirectory()) {
+            String[] names = file.list();
+            java.util.Arrays.sort(names);
+            for (String name : names)
+                digestTree(md, new File(file, name));
+        } else if (file.isFile()) {
+            md.update(bytes(file.getPath() + "\0"));
+            digestFile(md, file);
+        }
+    }
+
+    private static String hash(String salt, File file) throws IOException {
+        MessageDigest md = digest();
+        md.update(bytes(salt));
+        digestFile(md, file);
+        return hex(md.digest());
+    }
+
+    private static void digestFile(MessageDigest md, File file)
+            throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                md.update(buf, 0, n);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b & 0xFF));
+        return sb.toString();
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        File parent = to.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("could not create " + parent);
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out)
+            throws IOException {
+        byte[] buf = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+        out.flush();
+    }
+}
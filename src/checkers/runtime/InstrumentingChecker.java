@@ -1,5 +1,9 @@
 package checkers.runtime;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -9,9 +13,17 @@ import javax.lang.model.element.TypeElement;
 
 import checkers.basetype.BaseTypeChecker;
 import checkers.runtime.instrument.InstrumentingTranslator;
+import checkers.runtime.instrument.JavacInternals;
+import checkers.runtime.instrument.ObjectSizes;
+import checkers.runtime.instrument.TranslationProfile;
+import checkers.runtime.rt.SiteTable;
 
 import com.sun.source.util.TreePath;
+import com.sun.tools.javac.processing.JavacProcessingEnvironment;
+import com.sun.tools.javac.code.Kinds;
+import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeScanner;
 
 /**
  * The checker class, which we here abuse to run our instrumentation code at the
@@ -20,6 +32,15 @@ import com.sun.tools.javac.tree.JCTree;
 public class InstrumentingChecker extends BaseTypeChecker {
     public static final String DEBUG_FLAG = "jilldbg";
     public static final String VERBOSE_FLAG = "jillverb";
+    public static final String SITES_FLAG = "jillsites";
+    public static final String PROFILE_FLAG = "jillprof";
+    public static final String DEPS_FLAG = "jilldeps";
+    public static final String SITE_BASE_FLAG = "jillsitebase";
+    public static final String SAMPLE_FLAG = "jillsample";
+    public static final String SWITCH_FLAG = "jillswitch";
+    public static final String OOPS_FLAG = "jilloops";
+    public static final String ELIDE_FLAG = "jillelide";
+    public static final String HOIST_FLAG = "jillhoist";
 
     private boolean debug = false;
     public boolean debug() { return debug; }
@@ -27,21 +48,124 @@ public class InstrumentingChecker extends BaseTypeChecker {
     private boolean verbose = false;
     public boolean verbose() { return verbose; }
 
+    private boolean profiling = false;
+    public boolean profiling() { return profiling; }
+    private final TranslationProfile totalProfile = new TranslationProfile();
+
+    // Every instrumented site in this compilation, by ID.
+    private SiteTable sites = new SiteTable();
+    public SiteTable sites() { return sites; }
+    private File sitesFile = null;
+    private File depsFile = null;
+
+    // Sampling mode: at most one of these is set.
+    private int samplePeriod = 0;
+    public int samplePeriod() { return samplePeriod; }
+    private double sampleRate = 0.0;
+    public double sampleRate() { return sampleRate; }
+
+    // Guard sites with checkers.runtime.rt.HookSwitch.
+    private boolean switchable = false;
+    public boolean switchable() { return switchable; }
+
+    // Object size model for the creation hooks; shared by all compilation
+    // units so each class's layout is computed once.
+    private ObjectSizes objectSizes;
+    public ObjectSizes objectSizes() { return objectSizes; }
+
+    // Skip casts and type tests already made on the same local.
+    private boolean elideRedundant = false;
+    public boolean elideRedundant() { return elideRedundant; }
+
+    // Report loop-invariant events once per loop.
+    private boolean hoistLoops = false;
+    public boolean hoistLoops() { return hoistLoops; }
+
     public Instrumentor instrumentor;
 
     // The -Ajilldbg flag prints out debugging information during source
-    // translation.
+    // translation. -Ajillsites=FILE writes the table of instrumented sites
+    // to FILE. -Ajillprof reports the time spent in each translation phase,
+    // per compilation unit and (at exit) in total. -Ajilldeps=FILE appends
+    // the dependencies and site IDs of each translated class to FILE, for
+    // use by InstrumentationCache, which also passes -Ajillsitebase=N to
+    // number new sites from N, after those of the classes it reuses.
+    // -Ajillsample=N instruments sites so that only
+    // one in every N events reaches the runtime; -Ajillsample=P, for a
+    // fraction 0 < P < 1, samples each event with probability P.
+    // -Ajillswitch lets instrumentation be turned on and off at run time
+    // through HookSwitch. -Ajilloops=uncompressed computes the object sizes
+    // passed to creation hooks for a JVM without compressed oops (by
+    // default, they are computed for one with them). -Ajillelide hands
+    // casts and type tests that repeat an earlier check of the same,
+    // unmodified local to Instrumentor.instRedundantCheck instead.
+    // -Ajillhoist instruments loop-invariant events in for loops on their
+    // first iteration only, and reports the rest in one batch per loop (see
+    // Instrumentor.instRepeated). Events whose value can change from one
+    // iteration to the next, such as "(Foo)list.get(i)" or loads of locals
+    // the loop assigns, still reach the runtime on every iteration.
     @Override
     public void initChecker(ProcessingEnvironment env) {
         super.initChecker(env);
         Map<String, String> opts = env.getOptions();
         debug = opts.containsKey(DEBUG_FLAG);
         verbose = opts.containsKey(VERBOSE_FLAG);
+        if (opts.get(SITES_FLAG) != null)
+            sitesFile = new File(opts.get(SITES_FLAG));
+        if (opts.get(DEPS_FLAG) != null)
+            depsFile = new File(opts.get(DEPS_FLAG));
+        if (opts.get(SITE_BASE_FLAG) != null)
+            sites = new SiteTable(Integer.parseInt(opts.get(SITE_BASE_FLAG)));
+        if (opts.get(SAMPLE_FLAG) != null)
+            parseSampling(opts.get(SAMPLE_FLAG));
+        switchable = opts.containsKey(SWITCH_FLAG);
+        String oops = opts.get(OOPS_FLAG);
+        if (oops != null && !oops.equals("compressed") &&
+                !oops.equals("uncompressed"))
+            throw new IllegalArgumentException(
+                "-A" + OOPS_FLAG + " expects compressed or uncompressed: " +
+                oops);
+        objectSizes = new ObjectSizes(!"uncompressed".equals(oops));
+        elideRedundant = opts.containsKey(ELIDE_FLAG);
+        hoistLoops = opts.containsKey(HOIST_FLAG);
+        profiling = opts.containsKey(PROFILE_FLAG);
+        if (profiling) {
+            // There is no end-of-compilation callback, so report the totals
+            // when javac exits.
+            java.lang.Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    System.err.print(totalProfile.report("jill total"));
+                }
+            });
+        }
+
+        // Resolve the javac internals we rely on now, so that an
+        // incompatible compiler fails here rather than mid-translation.
+        JavacInternals.instance(((JavacProcessingEnvironment)env).getContext());
 
         instrumentor = getInstrumentor();
         instrumentor.debug = debug;
     }
 
+    private void parseSampling(String value) {
+        double n;
+        try {
+            n = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                "-A" + SAMPLE_FLAG + " expects a period or a rate: " + value);
+        }
+        if (n > 0.0 && n < 1.0) {
+            sampleRate = n;
+        } else if (n >= 1.0 && n == Math.floor(n) && n <= Integer.MAX_VALUE) {
+            samplePeriod = (int)n;
+        } else {
+            throw new IllegalArgumentException(
+                "-A" + SAMPLE_FLAG + " expects a period or a rate: " + value);
+        }
+    }
+
     // We manually add the debug flag command-line option rather than using the
     // @SupportedOptions annotation because the annotation isn't inherited.
     @Override
@@ -51,6 +175,15 @@ public class InstrumentingChecker extends BaseTypeChecker {
         newOptions.addAll(oldOptions);
         newOptions.add(DEBUG_FLAG);
         newOptions.add(VERBOSE_FLAG);
+        newOptions.add(SITES_FLAG);
+        newOptions.add(PROFILE_FLAG);
+        newOptions.add(DEPS_FLAG);
+        newOptions.add(SITE_BASE_FLAG);
+        newOptions.add(SAMPLE_FLAG);
+        newOptions.add(SWITCH_FLAG);
+        newOptions.add(OOPS_FLAG);
+        newOptions.add(ELIDE_FLAG);
+        newOptions.add(HOIST_FLAG);
         return newOptions;
     }
 
@@ -62,6 +195,19 @@ public class InstrumentingChecker extends BaseTypeChecker {
 
         JCTree tree = (JCTree) p.getCompilationUnit(); // or maybe p.getLeaf()?
 
+        // Dependencies are taken from the source as written; the class's
+        // sites are the ones its translation adds.
+        Set<String> deps = null;
+        if (depsFile != null)
+            deps = dependencies((JCTree.JCCompilationUnit) tree);
+        int firstSite = sites.nextId();
+        instrument(p, tree, e);
+        if (depsFile != null)
+            recordDependencies(e, (JCTree.JCCompilationUnit) tree, deps,
+                               firstSite, sites.nextId());
+    }
+
+    private void instrument(TreePath p, JCTree tree, TypeElement e) {
         InstrumentingTranslator translator = getTranslator(p);
         if (translator == null) {
             return;
@@ -73,12 +219,94 @@ public class InstrumentingChecker extends BaseTypeChecker {
         }
 
         instrumentor.beginInstrumentation(translator);
+        long start = System.nanoTime();
         tree.accept(translator);
 
+        TranslationProfile profile = translator.profile();
+        if (profile != null) {
+            profile.record(TranslationProfile.TRANSLATE, start);
+            System.err.print(profile.report("jill " + e.getQualifiedName()));
+            totalProfile.add(profile);
+        }
+
         if (debug) {
             System.out.println("Translated to:");
             System.out.println(tree);
         }
+        if (verbose) {
+            System.out.println("local references: " +
+                               translator.referencedLocals() + " wrapped, " +
+                               translator.elidedLocals() + " elided");
+        }
+
+        if (sitesFile != null) {
+            try {
+                sites.flush(sitesFile);
+            } catch (IOException exc) {
+                throw new RuntimeException("could not write site table", exc);
+            }
+        }
+    }
+
+    // The binary names of the top-level classes, other than its own, that
+    // a compilation unit refers to. Classes read from class files (the JDK,
+    // the classpath, and units InstrumentationCache did not recompile) are
+    // included; the cache maps the names back to its units and ignores the
+    // rest.
+    private Set<String> dependencies(final JCTree.JCCompilationUnit unit) {
+        final Set<String> deps = new HashSet<String>();
+        new TreeScanner() {
+            private void add(Symbol sym) {
+                if (sym == null || sym.kind == Kinds.PCK)
+                    return;
+                Symbol.ClassSymbol cls = sym.outermostClass();
+                if (cls != null && cls.sourcefile != unit.sourcefile)
+                    deps.add(cls.flatname.toString());
+            }
+            @Override
+            public void visitIdent(JCTree.JCIdent tree) {
+                add(tree.sym);
+            }
+            @Override
+            public void visitSelect(JCTree.JCFieldAccess tree) {
+                add(tree.sym);
+                super.visitSelect(tree);
+            }
+        }.scan(unit);
+        return deps;
+    }
+
+    // Append a "source <tab> binary class name <tab> dependency;... <tab>
+    // first site <tab> end site" line to the dependency file. The class's
+    // sites are the IDs in [first, end).
+    private void recordDependencies(TypeElement e,
+                                    JCTree.JCCompilationUnit unit,
+                                    Set<String> deps, int firstSite,
+                                    int endSite) {
+        String source = unit.getSourceFile().getName();
+        StringBuilder line = new StringBuilder();
+        line.append(source).append('\t');
+        line.append(processingEnv.getElementUtils().getBinaryName(e));
+        line.append('\t');
+        boolean first = true;
+        for (String dep : deps) {
+            if (!first)
+                line.append(';');
+            line.append(dep);
+            first = false;
+        }
+        line.append('\t').append(firstSite).append('\t').append(endSite);
+
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(depsFile, true));
+            try {
+                out.println(line);
+            } finally {
+                out.close();
+            }
+        } catch (IOException exc) {
+            throw new RuntimeException("could not write dependencies", exc);
+        }
     }
 
     public InstrumentingTranslator getTranslator(TreePath path) {
@@ -3,15 +3,172 @@ package checkers.runtime;
 import checkers.runtime.instrument.*;
 
 import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.TypeTags;
 
 public class Instrumentor {
+    // Kinds of memory access, for the load and store hooks.
+    public static final int LOCAL = 0;
+    public static final int FIELD = 1;
+    public static final int ARRAY = 2;
+
     protected InstrumentingTranslator translator;
     protected boolean debug;
 
+    protected static final String ACCESSES_CLASS =
+        checkers.runtime.rt.Accesses.class.getName();
+
     public void beginInstrumentation(InstrumentingTranslator translator) {
         this.translator = translator;
     }
 
+    // Whether the instrumentation observes loads from (stores to) a local
+    // variable or parameter through its __REF__ reference. Locals that are
+    // observed neither way stay plain JVM locals. The default is
+    // conservative: every local is wrapped.
+    public boolean observesLocalLoads(Symbol.VarSymbol var) {
+        return true;
+    }
+
+    public boolean observesLocalStores(Symbol.VarSymbol var) {
+        return true;
+    }
+
+    // Whether loads (stores) of the given kind of access are instrumented at
+    // all. Local accesses are additionally filtered per variable by
+    // observesLocalLoads/observesLocalStores. Nothing is instrumented by
+    // default.
+    public boolean observesLoads(int kind) {
+        return false;
+    }
+
+    public boolean observesStores(int kind) {
+        return false;
+    }
+
+    // Instrument a load: "access" is the rvalue expression reading a local
+    // (as its __REF__.value), a field or an array element. Returns the
+    // replacement expression, which must have the same type.
+    public JCTree.JCExpression instLoad(JCTree.JCExpression access, int kind,
+                                        int site) {
+        if (debug)
+            System.err.println("instrumenting load: " + access);
+        return access;
+    }
+
+    // Instrument a store of "rhs" into "lhs". Returns the replacement for
+    // the right-hand side. A compound assignment or an increment of a
+    // local, a field or an array element reached through names alone is
+    // reported as a load of the old value followed by a store of the new
+    // one. Other updates, and x++ or x-- of a floating-point x used as a
+    // value, are not reported.
+    public JCTree.JCExpression instStore(JCTree.JCExpression lhs,
+                                         JCTree.JCExpression rhs, int kind,
+                                         int site) {
+        if (debug)
+            System.err.println("instrumenting store: " + lhs + " = " + rhs);
+        return rhs;
+    }
+
+    // Builds "checkers.runtime.rt.Accesses.hook(value, site)". Accesses has
+    // an overload for every primitive kind, so attributing the call picks
+    // one that does not box the value. Use "load" or "store" as the hook.
+    protected JCTree.JCExpression accessCall(String hook,
+                                             JCTree.JCExpression value,
+                                             int site) {
+        return translator.maker.Apply(
+            null,
+            translator.dotsExp(ACCESSES_CLASS + "." + hook),
+            com.sun.tools.javac.util.List.<JCTree.JCExpression>of(
+                value, translator.intExp(site))
+        );
+    }
+
+    // Object creation. If creationRuntime() names a static field holding a
+    // checkers.runtime.rt.Runtime, such as "pkg.MyRuntime.instance", the
+    // default hooks below report every creation to it. Sizes are computed at
+    // compile time by checkers.runtime.instrument.ObjectSizes; everything is
+    // reported as precise. The default, null, leaves creations alone.
+    public String creationRuntime() {
+        return null;
+    }
+
+    // Instrument "new C(...)", which takes size bytes. By default:
+    //   RT.wrappedNew(RT.beforeCreation(creator, false, size, 0, site),
+    //                 new C(...), creator)
+    // where creator is "this", or null in a static context. beforeCreation
+    // returns the depth wrappedNew pops back to, so entries left by
+    // creations that threw inside this one are discarded with it.
+    public JCTree.JCExpression instNewClass(JCTree.JCNewClass node, int size,
+                                            int site) {
+        if (creationRuntime() == null)
+            return node;
+        if (debug)
+            System.err.println("instrumenting new: " + node);
+        JCTree.JCExpression before = runtimeCall("beforeCreation",
+            translator.creatorExp(), boolLiteral(false),
+            translator.intExp(size), translator.intExp(0),
+            translator.intExp(site));
+        return runtimeCall("wrappedNew", before, node, translator.creatorExp());
+    }
+
+    // Instrument an array creation with the given number of dimensions,
+    // element size and empty-array size. By default:
+    //   RT.newArray(new T[n]..., dims, false, elementSize, 0, baseSize,
+    //               site)
+    public JCTree.JCExpression instNewArray(JCTree.JCNewArray node, int dims,
+                                            int elementSize, int baseSize,
+                                            int site) {
+        if (creationRuntime() == null)
+            return node;
+        if (debug)
+            System.err.println("instrumenting new array: " + node);
+        return runtimeCall("newArray", node, translator.intExp(dims),
+            boolLiteral(false), translator.intExp(elementSize),
+            translator.intExp(0), translator.intExp(baseSize),
+            translator.intExp(site));
+    }
+
+    // A statement to run at the start of a constructor (after its super()
+    // call), or null. It runs once for each instrumented constructor in the
+    // object's super() chain. By default: RT.enterConstructor(this);
+    public JCTree.JCStatement instConstructorEntry(JCTree.JCMethodDecl ctor) {
+        if (creationRuntime() == null)
+            return null;
+        return translator.maker.Exec(runtimeCall("enterConstructor",
+            translator.maker.This(ctor.sym.owner.type)));
+    }
+
+    // An int expression to evaluate on entry to a try statement with catch
+    // clauses, or null, and the statement to run first in each of its catch
+    // clauses, given a reference to the value of that expression. Together
+    // they discard the creation hooks' stack entries for creations that
+    // threw (see Runtime.enterCatch). By default:
+    //   RT.enterTry() and RT.enterCatch(depth);
+    public JCTree.JCExpression instTryEntry(JCTree.JCTry node) {
+        if (creationRuntime() == null)
+            return null;
+        return runtimeCall("enterTry");
+    }
+
+    public JCTree.JCStatement instCatchEntry(JCTree.JCCatch node,
+                                             JCTree.JCExpression depth) {
+        return translator.maker.Exec(runtimeCall("enterCatch", depth));
+    }
+
+    private JCTree.JCExpression runtimeCall(String method,
+                                            JCTree.JCExpression... args) {
+        return translator.maker.Apply(
+            null,
+            translator.dotsExp(creationRuntime() + "." + method),
+            com.sun.tools.javac.util.List.from(args)
+        );
+    }
+
+    private JCTree.JCExpression boolLiteral(boolean value) {
+        return translator.maker.Literal(TypeTags.BOOLEAN, value ? 1 : 0);
+    }
+
     public JCTree.JCExpression instCast(JCTree.JCTypeCast cast) {
         if (debug)
             System.err.println("instrumenting cast: " + cast);
@@ -23,4 +180,56 @@ public class Instrumentor {
             System.err.println("instrumenting instanceof: " + expr);
         return expr;
     }
+
+    // Site-aware variants. The translator calls these with the site's dense
+    // ID (see checkers.runtime.rt.SiteTable), which can be passed on to the
+    // runtime as a constant with translator.intExp(site). By default they
+    // ignore the ID.
+    public JCTree.JCExpression instCast(JCTree.JCTypeCast cast, int site) {
+        return instCast(cast);
+    }
+
+    public JCTree.JCExpression instInstanceOf(JCTree.JCInstanceOf expr,
+                                              int site) {
+        return instInstanceOf(expr);
+    }
+
+    // With -Ajillelide, a cast or type test of a local that an earlier
+    // check at site "dominator" has already checked against the same type
+    // (on every path, with no assignment in between) is passed here instead
+    // of to instCast/instInstanceOf. Return the check itself to drop its
+    // instrumentation (the default), or something cheap, such as a counter
+    // bump, for instrumentations that still want to count it.
+    public JCTree.JCExpression instRedundantCheck(JCTree.JCExpression check,
+                                                  int site, int dominator) {
+        if (debug)
+            System.err.println("eliding redundant check: " + check);
+        return check;
+    }
+
+    // With -Ajillhoist, a loop-invariant event in a for loop (a load of a
+    // local the loop never assigns, or a cast or type test of one) is
+    // instrumented only the first time it happens in each execution of the
+    // loop. The rest are reported when the loop exits, by the statement
+    // returned here, which should report that the event at site happened
+    // "count" (a long expression) more times. "event" is the original
+    // load, cast or type test; its operands still hold their values at loop
+    // exit. Returning null (the default) instruments the event on every
+    // iteration as usual.
+    public JCTree.JCStatement instRepeated(JCTree event, int site,
+                                           JCTree.JCExpression count) {
+        return null;
+    }
+
+    // Builds "checkers.runtime.rt.Accesses.repeated(site, count);", the
+    // batch report for instrumentations built on accessCall.
+    protected JCTree.JCStatement repeatedCall(int site,
+                                              JCTree.JCExpression count) {
+        return translator.maker.Exec(translator.maker.Apply(
+            null,
+            translator.dotsExp(ACCESSES_CLASS + ".repeated"),
+            com.sun.tools.javac.util.List.<JCTree.JCExpression>of(
+                translator.intExp(site), count)
+        ));
+    }
 }
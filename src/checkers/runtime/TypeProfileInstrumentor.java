@@ -0,0 +1,83 @@
+package checkers.runtime;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeCopier;
+import com.sun.tools.javac.util.List;
+
+// Records the classes that reach each reference cast and instanceof site in
+// checkers.runtime.rt.TypeProfile. The operand is passed through the
+// profile, so values that fail the check are counted too:
+//
+//   (T)x           becomes  (T)TypeProfile.observeCast(x, site)
+//   x instanceof T becomes  TypeProfile.observeTest(x, site) instanceof T
+//
+// With -Ajillhoist, checks hoisted out of loops report their repeats with
+// TypeProfile.repeat.
+public class TypeProfileInstrumentor extends Instrumentor {
+    protected static final String PROFILE_CLASS =
+        checkers.runtime.rt.TypeProfile.class.getName();
+
+    // Only casts and type tests are instrumented, so locals stay plain.
+    @Override
+    public boolean observesLocalLoads(Symbol.VarSymbol var) {
+        return false;
+    }
+
+    @Override
+    public boolean observesLocalStores(Symbol.VarSymbol var) {
+        return false;
+    }
+
+    // hook is "observeCast" or "observeTest".
+    protected JCTree.JCExpression observe(String hook,
+                                          JCTree.JCExpression value,
+                                          int site) {
+        return translator.maker.Apply(
+            null,
+            translator.dotsExp(PROFILE_CLASS + "." + hook),
+            List.<JCTree.JCExpression>of(value, translator.intExp(site))
+        );
+    }
+
+    @Override
+    public JCTree.JCExpression instCast(JCTree.JCTypeCast cast, int site) {
+        // Primitive conversions have no class to profile.
+        if (cast.expr.type == null || cast.expr.type.isPrimitive())
+            return super.instCast(cast, site);
+        if (debug)
+            System.err.println("profiling cast: " + cast);
+        return translator.maker.TypeCast(
+            cast.clazz, observe("observeCast", cast.expr, site));
+    }
+
+    @Override
+    public JCTree.JCExpression instInstanceOf(JCTree.JCInstanceOf expr,
+                                              int site) {
+        if (debug)
+            System.err.println("profiling instanceof: " + expr);
+        return translator.maker.TypeTest(
+            observe("observeTest", expr.expr, site), expr.clazz);
+    }
+
+    // A check hoisted out of a loop saw the same local every time, so the
+    // rest of its observations are of the same class.
+    @Override
+    public JCTree.JCStatement instRepeated(JCTree event, int site,
+                                           JCTree.JCExpression count) {
+        JCTree.JCExpression operand;
+        if (event instanceof JCTree.JCTypeCast)
+            operand = ((JCTree.JCTypeCast)event).expr;
+        else if (event instanceof JCTree.JCInstanceOf)
+            operand = ((JCTree.JCInstanceOf)event).expr;
+        else
+            return null;
+        return translator.maker.Exec(translator.maker.Apply(
+            null,
+            translator.dotsExp(PROFILE_CLASS + ".repeat"),
+            List.<JCTree.JCExpression>of(
+                new TreeCopier<Void>(translator.maker).copy(operand),
+                translator.intExp(site), count)
+        ));
+    }
+}
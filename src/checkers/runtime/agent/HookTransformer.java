@@ -0,0 +1,175 @@
+package checkers.runtime.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import checkers.runtime.rt.BytecodeHooks;
+import checkers.runtime.rt.SiteTable;
+
+// Inserts the configured hooks after every CHECKCAST and INSTANCEOF, the
+// bytecode equivalents of the casts and instanceof tests that
+// InstrumentingTranslator hands to an Instrumentor. After
+//
+//   CHECKCAST T          we add   SIPUSH/LDC site; INVOKESTATIC cast hook;
+//                                 CHECKCAST T
+//   INSTANCEOF T         we add   SIPUSH/LDC site; INVOKESTATIC instanceof hook
+//
+// so each hook sees the value and returns it, exactly as in the source
+// backend. The stack types at every instruction boundary are unchanged, so
+// existing stack map frames remain valid and only max stack is recomputed.
+//
+// The transformer is stateless apart from the (synchronized) site table and
+// the cache, so class loaders on different threads transform in parallel.
+public class HookTransformer implements ClassFileTransformer {
+    private final String castOwner, castName;
+    private final String instOwner, instName;
+    private final SiteTable sites;
+    private final TransformCache cache;
+    private final String[] excluded;
+
+    public HookTransformer(BytecodeHooks hooks, SiteTable sites,
+                           TransformCache cache, String[] excluded) {
+        String cast = hooks.castHook();
+        String inst = hooks.instanceOfHook();
+        castOwner = cast == null ? null : owner(cast);
+        castName = cast == null ? null : name(cast);
+        instOwner = inst == null ? null : owner(inst);
+        instName = inst == null ? null : name(inst);
+        this.sites = sites;
+        this.cache = cache;
+        this.excluded = excluded;
+    }
+
+    private static String owner(String hook) {
+        return hook.substring(0, hook.lastIndexOf('.')).replace('.', '/');
+    }
+
+    private static String name(String hook) {
+        return hook.substring(hook.lastIndexOf('.') + 1);
+    }
+
+    // A string identifying the configuration, for cache keys.
+    public String configuration() {
+        return castOwner + "." + castName + "/" + instOwner + "." + instName;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className,
+                            Class<?> redefined, ProtectionDomain domain,
+                            byte[] classfile) {
+        if (className == null || redefined != null)
+            return null;
+        for (String prefix : excluded) {
+            if (className.startsWith(prefix))
+                return null;
+        }
+        // Instrumenting the hooks themselves would recurse.
+        if (className.equals(castOwner) || className.equals(instOwner))
+            return null;
+        try {
+            if (cache != null)
+                return cache.transform(className, classfile, this);
+            return transform(classfile);
+        } catch (Throwable t) {
+            // Never let instrumentation break class loading, but say why
+            // the class is left as it is.
+            System.err.println("checkers.runtime.agent: could not transform " +
+                               className + "; loading it uninstrumented:");
+            t.printStackTrace();
+            return null;
+        }
+    }
+
+    // Returns the transformed class, or null if it has no sites.
+    byte[] transform(byte[] classfile) {
+        ClassReader reader = new ClassReader(classfile);
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        SiteVisitor visitor = new SiteVisitor(writer);
+        reader.accept(visitor, 0);
+        return visitor.changed ? writer.toByteArray() : null;
+    }
+
+    private class SiteVisitor extends ClassVisitor {
+        String className;
+        String sourceFile = "";
+        boolean changed = false;
+
+        SiteVisitor(ClassVisitor cv) {
+            super(Opcodes.ASM9, cv);
+        }
+
+        @Override
+        public void visit(int version, int access, String name,
+                          String signature, String superName,
+                          String[] interfaces) {
+            className = name;
+            super.visit(version, access, name, signature, superName,
+                        interfaces);
+        }
+
+        @Override
+        public void visitSource(String source, String debug) {
+            if (source != null)
+                sourceFile = source;
+            super.visitSource(source, debug);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, final String methName,
+                                         String desc, String signature,
+                                         String[] exceptions) {
+            MethodVisitor mv = super.visitMethod(access, methName, desc,
+                                                 signature, exceptions);
+            return new MethodVisitor(Opcodes.ASM9, mv) {
+                int line = 0;
+
+                @Override
+                public void visitLineNumber(int line, Label start) {
+                    this.line = line;
+                    super.visitLineNumber(line, start);
+                }
+
+                private int site(String kind, String type) {
+                    String pkg = className.lastIndexOf('/') < 0 ? "" :
+                        className.substring(0, className.lastIndexOf('/') + 1);
+                    return sites.add(kind, pkg + sourceFile, line,
+                                     className.replace('/', '.') + "." +
+                                     methName, null, type.replace('/', '.'));
+                }
+
+                private void pushInt(int value) {
+                    if (value <= Short.MAX_VALUE)
+                        super.visitIntInsn(Opcodes.SIPUSH, value);
+                    else
+                        super.visitLdcInsn(value);
+                }
+
+                @Override
+                public void visitTypeInsn(int opcode, String type) {
+                    super.visitTypeInsn(opcode, type);
+                    if (opcode == Opcodes.CHECKCAST && castOwner != null) {
+                        pushInt(site("cast", type));
+                        super.visitMethodInsn(Opcodes.INVOKESTATIC,
+                            castOwner, castName,
+                            "(Ljava/lang/Object;I)Ljava/lang/Object;", false);
+                        super.visitTypeInsn(Opcodes.CHECKCAST, type);
+                        changed = true;
+                    } else if (opcode == Opcodes.INSTANCEOF &&
+                               instOwner != null) {
+                        pushInt(site("instanceof", type));
+                        super.visitMethodInsn(Opcodes.INVOKESTATIC,
+                            instOwner, instName, "(ZI)Z", false);
+                        changed = true;
+                    }
+                }
+            };
+        }
+    }
+}
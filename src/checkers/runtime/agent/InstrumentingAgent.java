@@ -0,0 +1,160 @@
+package checkers.runtime.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import checkers.runtime.rt.BytecodeHooks;
+import checkers.runtime.rt.SiteTable;
+
+/**
+ * A load-time backend for instrumentation: a java.lang.instrument agent
+ * that inserts the hooks named by a BytecodeHooks class directly into
+ * bytecode as classes are loaded, including classes from third-party jars.
+ *
+ *   java -javaagent:cfrt-agent.jar=hooks=CLASS[,cache=DIR][,sites=FILE]
+ *        [,exclude=PREFIX;PREFIX...] ...
+ *
+ * hooks names the BytecodeHooks implementation (which must be on the class
+ * path). With cache=DIR, transformed classes are kept on disk and reused
+ * by later runs; the site table then lives in DIR/sites. Otherwise the
+ * site table is written to FILE at exit, if given. Classes of the JDK and
+ * of this project are never instrumented.
+ *
+ * To take transformation off the startup path altogether, warm the cache
+ * ahead of time, in parallel:
+ *
+ *   java -cp ... checkers.runtime.agent.InstrumentingAgent warm HOOKS DIR JAR...
+ */
+public class InstrumentingAgent {
+    static final String[] ALWAYS_EXCLUDED = {
+        "java/", "javax/", "jdk/", "sun/", "com/sun/", "org/objectweb/asm/",
+        "checkers/runtime/"
+    };
+
+    public static void premain(String args, Instrumentation inst)
+            throws Exception {
+        String hooksClass = null;
+        String cacheDir = null;
+        String sitesFile = null;
+        List<String> excluded = new ArrayList<String>();
+        for (String prefix : ALWAYS_EXCLUDED)
+            excluded.add(prefix);
+
+        if (args != null) {
+            for (String arg : args.split(",")) {
+                int eq = arg.indexOf('=');
+                String key = eq < 0 ? arg : arg.substring(0, eq);
+                String value = eq < 0 ? "" : arg.substring(eq + 1);
+                if (key.equals("hooks"))
+                    hooksClass = value;
+                else if (key.equals("cache"))
+                    cacheDir = value;
+                else if (key.equals("sites"))
+                    sitesFile = value;
+                else if (key.equals("exclude"))
+                    for (String prefix : value.split(";"))
+                        excluded.add(prefix.replace('.', '/'));
+                else
+                    throw new IllegalArgumentException(
+                        "unknown agent option: " + key);
+            }
+        }
+        if (hooksClass == null)
+            throw new IllegalArgumentException("agent needs hooks=CLASS");
+
+        BytecodeHooks hooks = loadHooks(hooksClass);
+        TransformCache cache = null;
+        final SiteTable sites;
+        if (cacheDir != null) {
+            cache = new TransformCache(new File(cacheDir));
+            sites = cache.sites();
+        } else {
+            sites = new SiteTable();
+        }
+        inst.addTransformer(new HookTransformer(
+            hooks, sites, cache,
+            excluded.toArray(new String[excluded.size()])));
+
+        if (cacheDir == null && sitesFile != null) {
+            final File file = new File(sitesFile);
+            java.lang.Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        sites.flush(file);
+                    } catch (IOException e) {
+                        System.err.println("checkers.runtime.agent: " + e);
+                    }
+                }
+            });
+        }
+    }
+
+    static BytecodeHooks loadHooks(String name) throws Exception {
+        return (BytecodeHooks)Class.forName(name).getDeclaredConstructor()
+            .newInstance();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4 || !args[0].equals("warm")) {
+            System.err.println("usage: InstrumentingAgent warm HOOKS CACHEDIR JAR...");
+            System.exit(2);
+        }
+        TransformCache cache = new TransformCache(new File(args[2]));
+        final HookTransformer transformer = new HookTransformer(
+            loadHooks(args[1]), cache.sites(), cache, ALWAYS_EXCLUDED);
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+            java.lang.Runtime.getRuntime().availableProcessors());
+        List<Future<?>> work = new ArrayList<Future<?>>();
+        int count = 0;
+        for (int i = 3; i < args.length; i++) {
+            JarFile jar = new JarFile(args[i]);
+            for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+                JarEntry entry = e.nextElement();
+                final String name = entry.getName();
+                if (!name.endsWith(".class"))
+                    continue;
+                final byte[] classfile = readAll(jar.getInputStream(entry));
+                work.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        transformer.transform(null,
+                            name.substring(0, name.length() - 6),
+                            null, null, classfile);
+                    }
+                }));
+                count++;
+            }
+            jar.close();
+        }
+        for (Future<?> f : work)
+            f.get();
+        pool.shutdown();
+        System.err.println("warmed " + count + " classes");
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1 << 14];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package checkers.runtime.agent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import checkers.runtime.rt.SiteTable;
+
+// An on-disk cache of transformed classes, keyed by a hash of the original
+// class file and the hook configuration. Cached classes embed site IDs, so
+// the cache directory also holds the site table those IDs refer to
+// ("sites"), which only ever grows. A cache directory should be used by one
+// JVM at a time.
+public class TransformCache {
+    static final String SITES = "sites";
+    // Marks classes that have no sites, so we don't re-scan them.
+    private static final byte[] UNCHANGED = new byte[0];
+
+    private final File dir;
+    private final SiteTable sites;
+
+    public TransformCache(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("could not create " + dir);
+        File sitesFile = new File(dir, SITES);
+        sites = sitesFile.exists() ? SiteTable.read(sitesFile) : new SiteTable();
+    }
+
+    public SiteTable sites() {
+        return sites;
+    }
+
+    byte[] transform(String className, byte[] classfile,
+                     HookTransformer transformer) throws IOException {
+        File entry = new File(dir, key(classfile, transformer.configuration()));
+        if (entry.exists()) {
+            byte[] cached = read(entry);
+            return cached.length == 0 ? null : cached;
+        }
+
+        byte[] out = transformer.transform(classfile);
+        // Record the sites before the class that uses them.
+        synchronized (sites) {
+            sites.flush(new File(dir, SITES));
+        }
+        write(entry, out == null ? UNCHANGED : out);
+        return out;
+    }
+
+    private static String key(byte[] classfile, String configuration) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < configuration.length(); i++)
+            md.update((byte)configuration.charAt(i));
+        md.update(classfile);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest())
+            sb.append(String.format("%02x", b & 0xFF));
+        return sb.append(".class").toString();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            while (off < data.length) {
+                int n = in.read(data, off, data.length - off);
+                if (n < 0)
+                    throw new IOException("truncated cache entry " + file);
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    // Write to a temporary file and rename, so concurrent loaders never see
+    // a partial entry.
+    private static void write(File file, byte[] data) throws IOException {
+        File tmp = File.createTempFile("cls", ".tmp", file.getParentFile());
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            if (!file.exists())
+                throw new IOException("could not write cache entry " + file);
+        }
+    }
+}
@@ -17,6 +17,7 @@ import com.sun.tools.javac.comp.MemberEnter;
 import com.sun.tools.javac.processing.JavacProcessingEnvironment;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.tree.TreeMaker;
+import com.sun.tools.javac.tree.TreeScanner;
 import com.sun.tools.javac.tree.TreeTranslator;
 import com.sun.tools.javac.util.Context;
 import com.sun.tools.javac.util.Name;
@@ -33,9 +34,6 @@ import java.util.Stack;
 import java.util.Map;
 import java.util.HashMap;
 
-import java.lang.reflect.Method;
-import java.lang.reflect.InvocationTargetException;
-
 
 // A "helper" base class with convenient methods for AST generation
 // and manipulation. Its most important role is helping with "attribution,"
@@ -57,6 +55,10 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
     protected AnnotatedTypeFactory atypeFactory;
     protected Symtab symtab;
     protected Log log;
+    protected JavacInternals internals;
+
+    // Phase timings; null unless profiling (-Ajillprof) is on.
+    protected TranslationProfile profile;
 
     // For getting attribution context.
     protected Stack<JCTree> visitingScopes = new Stack<JCTree>();
@@ -79,6 +81,24 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
         jctypes = com.sun.tools.javac.code.Types.instance(context);
         log = Log.instance(context);
         symtab = Symtab.instance(context);
+        internals = JavacInternals.instance(context);
+        if (c.profiling())
+            profile = new TranslationProfile();
+    }
+
+    public TranslationProfile profile() {
+        return profile;
+    }
+
+    // Profiling helpers: tick() marks the start of a phase and tock() charges
+    // the time since then to the phase. Both are nearly free when profiling
+    // is off.
+    protected long tick() {
+        return profile == null ? 0 : System.nanoTime();
+    }
+    protected void tock(int phase, long start) {
+        if (profile != null)
+            profile.record(phase, start);
     }
 
 
@@ -114,6 +134,30 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
         return maker.Literal(TypeTags.BOOLEAN, val ? 1 : 0);
     }
 
+    // Integer literals.
+    public JCTree.JCLiteral intExp(int val) {
+        return maker.Literal(TypeTags.INT, val);
+    }
+
+    // Long literals.
+    public JCTree.JCLiteral longExp(long val) {
+        return maker.Literal(TypeTags.LONG, val);
+    }
+
+    // The source line of a tree in the current compilation unit.
+    protected long lineOf(JCTree tree) {
+        JCTree.JCCompilationUnit unit =
+            (JCTree.JCCompilationUnit)path.getCompilationUnit();
+        return unit.getLineMap().getLineNumber(tree.getStartPosition());
+    }
+
+    // The name of the current source file.
+    protected String sourceName() {
+        JCTree.JCCompilationUnit unit =
+            (JCTree.JCCompilationUnit)path.getCompilationUnit();
+        return unit.getSourceFile().getName();
+    }
+
 
     // Attribution.
 
@@ -127,6 +171,17 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
             new HashMap<JCTree.JCTypeCast, JCTree.JCNewClass>();
         private JCTree inLeaf = null;
         public JCTree outLeaf = null;
+        // Whether the last tree removed from contained inLeaf.
+        private boolean sawLeaf = false;
+        // The trees removed from, to restore.
+        private java.util.List<JCTree> roots = new java.util.ArrayList<JCTree>();
+
+        @Override
+        public <T extends JCTree> T translate(T tree) {
+            if (tree != null && tree == inLeaf)
+                sawLeaf = true;
+            return super.translate(tree);
+        }
 
         @Override
         public void visitNewClass(JCTree.JCNewClass node) {
@@ -149,20 +204,208 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
             }
         }
 
-        public JCTree remove(JCTree tree, JCTree leaf) {
+        private void removeFrom(JCTree tree) {
             reverse = false;
+            sawLeaf = tree == inLeaf;
+            tree.accept(this);
+            roots.add(tree);
+        }
+
+        public void remove(JCTree tree, JCTree leaf) {
+            long start = tick();
             inLeaf = leaf;
             outLeaf = leaf;
-            tree.accept(this);
-            return result;
+            removeFrom(tree);
+            tock(TranslationProfile.ANON_CLASSES, start);
         }
 
-        public JCTree replace(JCTree tree) {
+        // Remove from the statements of a block up to the one containing
+        // leaf, which are all that attribStatToTree(block, env, leaf)
+        // attributes; from every statement if none contains it.
+        public void removeUpTo(JCTree.JCBlock block, JCTree leaf) {
+            long start = tick();
+            inLeaf = leaf;
+            outLeaf = leaf;
+            // A statement is never itself an anonymous class, so it stays
+            // in place.
+            for (List<JCTree.JCStatement> l = block.stats; l.nonEmpty();
+                    l = l.tail) {
+                removeFrom(l.head);
+                if (sawLeaf)
+                    break;
+            }
+            tock(TranslationProfile.ANON_CLASSES, start);
+        }
+
+        public void restore() {
+            long start = tick();
             reverse = true;
-            tree.accept(this);
-            return result;
+            for (JCTree root : roots)
+                root.accept(this);
+            tock(TranslationProfile.ANON_CLASSES, start);
+        }
+    }
+
+    // The remove/restore round trip costs two passes over the tree, so we
+    // keep it to the trees that will actually be attributed: the tree
+    // itself for attribute*, one statement at a time for BlockEnvCache,
+    // and, when getAttrEnv has to attribute a block up to a leaf, the
+    // statements up to the leaf's. And anonymous classes in a method's
+    // trees either come from its source or are copied from it
+    // (instrumentation does not generate them), so a method without any
+    // needs no removal at all; the method bodies are scanned once, on
+    // entry, to find out.
+    private Stack<Boolean> methodHasAnonClasses = new Stack<Boolean>();
+
+    private static class AnonymousClassFinder extends TreeScanner {
+        boolean found = false;
+
+        @Override
+        public void scan(JCTree tree) {
+            if (!found)
+                super.scan(tree);
+        }
+
+        @Override
+        public void visitNewClass(JCTree.JCNewClass node) {
+            if (node.def != null)
+                found = true;
+            else
+                super.visitNewClass(node);
+        }
+    }
+
+    private static boolean containsAnonClass(JCTree tree) {
+        AnonymousClassFinder finder = new AnonymousClassFinder();
+        finder.scan(tree);
+        return finder.found;
+    }
+
+    private boolean mayHaveAnonClasses() {
+        return methodHasAnonClasses.isEmpty() || methodHasAnonClasses.peek();
+    }
+
+    // Removes the anonymous classes from tree if there may be any, returning
+    // the remover to undo it with restoreAnonClasses; null if there was
+    // nothing to do.
+    private AnonymousClassRemover removeAnonClasses(JCTree tree, JCTree leaf) {
+        if (!mayHaveAnonClasses())
+            return null;
+        AnonymousClassRemover remover = new AnonymousClassRemover();
+        remover.remove(tree, leaf);
+        return remover;
+    }
+
+    // Likewise, for attributing block up to leaf.
+    private AnonymousClassRemover removeAnonClassesUpTo(JCTree.JCBlock block,
+                                                        JCTree leaf) {
+        if (!mayHaveAnonClasses())
+            return null;
+        AnonymousClassRemover remover = new AnonymousClassRemover();
+        remover.removeUpTo(block, leaf);
+        return remover;
+    }
+
+    private void restoreAnonClasses(AnonymousClassRemover remover) {
+        if (remover != null)
+            remover.restore();
+    }
+
+    // The tree standing for leaf while the anonymous classes are removed.
+    private static JCTree removedLeaf(AnonymousClassRemover remover,
+                                      JCTree leaf) {
+        return remover == null ? leaf : remover.outLeaf;
+    }
+
+    // Remembers, for each block currently being visited, the environment
+    // reached after attributing some prefix of its statements. Translators
+    // like ReferencingTranslator.visitBlock request environments for
+    // successive statements of the same block; rather than re-attributing the
+    // whole block up to each statement (quadratic in the block's length), we
+    // extend the last environment by attributing only the statements in
+    // between. Like attribStatToTree, the environment we hand out is the one
+    // reached *after* attributing the leaf statement.
+    private class BlockEnvCache {
+        private class Entry {
+            Env<AttrContext> env;
+            // The list link holding the last statement folded into env. New
+            // statements spliced in after it are picked up automatically
+            // because we always continue from last.tail.
+            List<JCTree.JCStatement> last;
+        }
+        private Map<JCTree.JCBlock, Entry> entries =
+            new HashMap<JCTree.JCBlock, Entry>();
+
+        // Find the list link whose head is the given statement, or null if
+        // the statement is not a direct child of the block.
+        private List<JCTree.JCStatement> linkOf(List<JCTree.JCStatement> from,
+                                                JCTree leaf) {
+            for (List<JCTree.JCStatement> l = from; l.head != null; l = l.tail) {
+                if (l.head == leaf)
+                    return l;
+            }
+            return null;
+        }
+
+        // Returns the environment after the leaf statement, or null if the
+        // cache cannot provide it. A leaf that lies *before* the statements
+        // already folded in means the block was mutated out of order, so the
+        // entry is invalidated.
+        public Env<AttrContext> lookup(JCTree.JCBlock block, JCTree leaf) {
+            Entry entry = entries.get(block);
+            if (entry == null)
+                return null;
+
+            List<JCTree.JCStatement> target = linkOf(entry.last.tail, leaf);
+            if (target == null) {
+                if (entry.last.head == leaf) {
+                    // Requested the same position twice.
+                    return entry.env;
+                }
+                if (linkOf(block.stats, leaf) != null) {
+                    entries.remove(block);
+                }
+                return null;
+            }
+
+            // Fold the intervening statements (and the leaf) into the env.
+            for (List<JCTree.JCStatement> l = entry.last.tail; ; l = l.tail) {
+                // A statement is never itself an anonymous class, so it
+                // stays the root.
+                JCTree stat = l.head;
+                AnonymousClassRemover remover = removeAnonClasses(stat, null);
+                attr.attribStat(stat, entry.env);
+                restoreAnonClasses(remover);
+                if (l == target)
+                    break;
+            }
+            entry.last = target;
+            return entry.env;
+        }
+
+        // Record the environment computed (the slow way) after the leaf.
+        public void store(JCTree.JCBlock block, JCTree leaf,
+                          Env<AttrContext> env) {
+            List<JCTree.JCStatement> link = linkOf(block.stats, leaf);
+            if (link == null) {
+                entries.remove(block);
+                return;
+            }
+            Entry entry = new Entry();
+            entry.env = env;
+            entry.last = link;
+            entries.put(block, entry);
+        }
+
+        public void invalidate(JCTree.JCBlock block) {
+            entries.remove(block);
+        }
+
+        public void clear() {
+            entries.clear();
         }
     }
+    private BlockEnvCache envCache = new BlockEnvCache();
 
     // Gets the environment for attributing statements and expressions that are
     // generated. Pass this as an argument to one of the methods on the "attr"
@@ -171,6 +414,29 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
     // Inspired by com.sun.tools.javac.api.JavacTrees.getAttrContext
     protected Env<AttrContext> getAttrEnv(JCTree leaf,
             JCTree.JCMethodDecl exMeth, JCTree.JCBlock exBlock) {
+        long start = tick();
+        Env<AttrContext> env = computeAttrEnv(leaf, exMeth, exBlock);
+        tock(TranslationProfile.ATTR_ENV, start);
+        return env;
+    }
+    private Env<AttrContext> computeAttrEnv(JCTree leaf,
+            JCTree.JCMethodDecl exMeth, JCTree.JCBlock exBlock) {
+        // Statements of an explicitly-given block can usually be served
+        // incrementally from the cache.
+        if (exBlock != null) {
+            JavacInternals.DiagnosticSuppression quiet =
+                internals.suppressDiagnostics();
+            Env<AttrContext> cached;
+            try {
+                cached = envCache.lookup(exBlock, leaf);
+            } finally {
+                quiet.close();
+            }
+            if (cached != null)
+                return cached;
+        }
+
+
         JCTree.JCCompilationUnit compunit = null;
         JCTree.JCClassDecl class_ = null;
         JCTree.JCMethodDecl method = null;
@@ -238,32 +504,34 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
         }
 
         if (exBlock != null && block != null) {
-            AnonymousClassRemover remover = new AnonymousClassRemover();
-            remover.remove(block, exBlock);
-
-            env = attr.attribStatToTree(block, env, remover.outLeaf);
-
-            remover.replace(block);
+            AnonymousClassRemover remover =
+                removeAnonClassesUpTo(block, exBlock);
+            env = attr.attribStatToTree(block, env,
+                                        removedLeaf(remover, exBlock));
+            restoreAnonClasses(remover);
         }
 
         if (exBlock != null)
             block = exBlock;
         if (block != null) {
-            // This is a very tricky way to silence compiler errors when
-            // generating the environment. This allows us to get the environment
-            // even when *other* parts of the code are not yet valid.
-            int oldErrors = log.nerrors;
-            log.nerrors = 100; // MaxErrors now has protected access.
-
-            AnonymousClassRemover remover = new AnonymousClassRemover();
-            remover.remove(block, leaf);
-
-            env = attr.attribStatToTree(block, env, remover.outLeaf);
-            // System.out.println(env.info);
-
-            remover.replace(block);
+            // Silence compiler errors when generating the environment. This
+            // allows us to get the environment even when *other* parts of the
+            // code are not yet valid.
+            JavacInternals.DiagnosticSuppression quiet =
+                internals.suppressDiagnostics();
+            try {
+                AnonymousClassRemover remover =
+                    removeAnonClassesUpTo(block, leaf);
+                env = attr.attribStatToTree(block, env,
+                                            removedLeaf(remover, leaf));
+                // System.out.println(env.info);
+                restoreAnonClasses(remover);
+            } finally {
+                quiet.close();
+            }
 
-            log.nerrors = oldErrors;
+            if (exBlock != null)
+                envCache.store(exBlock, leaf, env);
         }
 
         return env;
@@ -272,53 +540,28 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
         return getAttrEnv(leaf, null, null);
     }
 
-    // Uses reflection trickery to enter a new class member into the
-    // symbol table.
+    // Enter a new class member into the symbol table (through
+    // MemberEnter's non-public memberEnter).
     public void enterClassMember(JCTree.JCClassDecl class_, JCTree member) {
-        Method meth = null;
-        try {
-            meth = MemberEnter.class.getDeclaredMethod("memberEnter", JCTree.class, Env.class);
-        } catch (NoSuchMethodException e) {
-            System.out.println("*** reflection error!");
-        }
-        meth.setAccessible(true);
-        Object[] args = {member, enter.getClassEnv(class_.sym)};
-        try {
-            meth.invoke(memberEnter, args);
-        } catch (IllegalAccessException e) {
-            System.out.println("*** reflection error!");
-        } catch (InvocationTargetException e) {
-            System.out.println("*** reflection error!");
-        }
+        long start = tick();
+        internals.memberEnter(member, enter.getClassEnv(class_.sym));
+        tock(TranslationProfile.ENTER_MEMBER, start);
     }
 
-    // More reflection trickery: get the type of an expression.
+    // Get the type of an expression (through Attr's non-public attribExpr).
     public Type typeForExpr(JCTree.JCExpression expr,
                             Env<AttrContext> env) {
-        Method meth = null;
-        try {
-            meth = Attr.class.getDeclaredMethod("attribExpr", JCTree.class, Env.class);
-        } catch (NoSuchMethodException e) {
-            System.out.println("*** reflection error!");
-        }
-        meth.setAccessible(true);
-        Object[] args = {expr, env};
-        Object ret = null;
-        try {
-            ret = meth.invoke(attr, args);
-        } catch (IllegalAccessException e) {
-            System.out.println("*** reflection error!");
-        } catch (InvocationTargetException e) {
-            System.out.println("*** reflection error!");
-        }
-        return (Type)ret;
+        long start = tick();
+        Type type = internals.attribExpr(expr, env);
+        tock(TranslationProfile.TYPE_FOR_EXPR, start);
+        return type;
     }
 
 
     // Succinctly attribute expressions and statements.
     public void attribute(JCTree.JCExpression expr, JCTree.JCExpression repl, Type type) {
-        AnonymousClassRemover remover = new AnonymousClassRemover();
-        remover.remove(expr, null);
+        long start = tick();
+        AnonymousClassRemover remover = removeAnonClasses(expr, null);
 
         if (checker.verbose())
             System.out.println("attributing: " + expr);
@@ -326,14 +569,15 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
         if (checker.verbose())
             System.out.println("   type: " + outType);
 
-        remover.replace(expr);
+        restoreAnonClasses(remover);
+        tock(TranslationProfile.ATTRIBUTE, start);
     }
     public void attribute(JCTree.JCExpression expr, JCTree.JCExpression repl) {
         attribute(expr, repl, repl.type);
     }
     public void attribute(JCTree.JCStatement stat, JCTree.JCStatement repl) {
-        AnonymousClassRemover remover = new AnonymousClassRemover();
-        remover.remove(stat, null);
+        long start = tick();
+        AnonymousClassRemover remover = removeAnonClasses(stat, null);
 
         if (checker.verbose())
             System.out.println("attributing: " + stat);
@@ -341,7 +585,8 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
         if (checker.verbose())
             System.out.println("    attribution done.");
 
-        remover.replace(stat);
+        restoreAnonClasses(remover);
+        tock(TranslationProfile.ATTRIBUTE, start);
     }
 
     public void attributeInBlock(JCTree.JCStatement stat,
@@ -351,16 +596,19 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
     public void attributeInMethod(JCTree.JCStatement stat,
                                   JCTree.JCMethodDecl meth,
                                   JCTree.JCBlock block) {
-        AnonymousClassRemover remover = new AnonymousClassRemover();
-        remover.remove(block, null);
+        long start = tick();
+        // getAttrEnv clears what it attributes of the block itself.
+        Env<AttrContext> env = getAttrEnv(stat, meth, block);
+        AnonymousClassRemover remover = removeAnonClasses(stat, null);
 
         if (checker.verbose())
             System.out.println("attributing: " + stat);
-        attr.attribStat(stat, getAttrEnv(stat, meth, block));
+        attr.attribStat(stat, env);
         if (checker.verbose())
             System.out.println("    attribution done.");
 
-        remover.replace(block);
+        restoreAnonClasses(remover);
+        tock(TranslationProfile.ATTRIBUTE, start);
     }
 
     // This is a huge, hacky workaround for dealing with attribution within static
@@ -447,13 +695,18 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
     @Override
     public void visitMethodDef(JCTree.JCMethodDecl node) {
         visitingScopes.push(node);
+        methodHasAnonClasses.push(containsAnonClass(node.body));
         super.visitMethodDef(node);
+        methodHasAnonClasses.pop();
         visitingScopes.pop();
+        envCache.clear();
     }
     @Override
     public void visitClassDef(JCTree.JCClassDecl node) {
         // Get rid of static initializers with local variables.
+        long start = tick();
         replaceStaticInitializer(node);
+        tock(TranslationProfile.STATIC_INIT, start);
 
         visitingScopes.push(node);
         super.visitClassDef(node);
@@ -464,6 +717,7 @@ public class HelpfulTreeTranslator<Checker extends InstrumentingChecker> extends
         visitingScopes.push(node);
         super.visitBlock(node);
         visitingScopes.pop();
+        envCache.invalidate(node);
     }
     @Override
     public void visitForLoop(JCTree.JCForLoop node) {
@@ -2,16 +2,23 @@ package checkers.runtime.instrument;
 
 import java.util.Set;
 import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.annotation.processing.ProcessingEnvironment;
 
 import checkers.runtime.InstrumentingChecker;
 import checkers.runtime.Instrumentor;
 
+import com.sun.source.tree.Tree.Kind;
 import com.sun.source.util.TreePath;
 import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeInfo;
+import com.sun.tools.javac.code.Flags;
 import com.sun.tools.javac.code.TypeTags;
+import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.tree.TreeCopier;
 import com.sun.tools.javac.util.List;
 
 
@@ -20,7 +27,31 @@ public class InstrumentingTranslator<Checker extends InstrumentingChecker> exten
     // (i.e., loads).
     private Set<JCTree.JCExpression> lvalues =
         new HashSet<JCTree.JCExpression>();
+    // The "new" expressions that initialize enum constants, which must stay
+    // bare: javac rejects any other creation of an enum, and Lower expects
+    // each constant's initializer to be the creation itself.
+    private Set<JCTree.JCNewClass> enumConstants =
+        new HashSet<JCTree.JCNewClass>();
     private final Instrumentor instrumentor;
+    private final ObjectSizes objectSizes;
+    // With -Ajillelide: redundant checks, mapped to the checks that make
+    // them redundant, and the sites given to those.
+    private Map<JCTree, JCTree> redundantChecks =
+        new HashMap<JCTree, JCTree>();
+    private Map<JCTree, Integer> checkSites = new HashMap<JCTree, Integer>();
+    // The casts added by expandedUpdate, which are not checks in the source.
+    private Set<JCTree.JCTypeCast> syntheticCasts =
+        new HashSet<JCTree.JCTypeCast>();
+    // Increments and decrements whose value is discarded (statements, and
+    // for loop steps).
+    private Set<JCTree.JCUnary> discardedUpdates =
+        new HashSet<JCTree.JCUnary>();
+    // With -Ajillhoist: the loop-invariant events of the loops being
+    // translated, mapped to the outermost loop they are invariant in.
+    private Map<JCTree, LoopHoisting> hoistedEvents =
+        new HashMap<JCTree, LoopHoisting>();
+    private int loopCounters = 0;
+    private int tryDepths = 0;
 
     public InstrumentingTranslator(Checker checker,
                                    ProcessingEnvironment env,
@@ -28,6 +59,17 @@ public class InstrumentingTranslator<Checker extends InstrumentingChecker> exten
                                    Instrumentor instrumentor) {
         super(checker, env, p);
         this.instrumentor = instrumentor;
+        this.objectSizes = checker.objectSizes();
+    }
+
+    // Locals only need references if the instrumentor observes them.
+    @Override
+    protected boolean observesLocalLoads(Symbol.VarSymbol var) {
+        return instrumentor.observesLocalLoads(var);
+    }
+    @Override
+    protected boolean observesLocalStores(Symbol.VarSymbol var) {
+        return instrumentor.observesLocalStores(var);
     }
 
     @Override
@@ -42,6 +84,20 @@ public class InstrumentingTranslator<Checker extends InstrumentingChecker> exten
         super.visitCase(node);
     }
 
+    // Annotation arguments and imports must stay as written: an annotation
+    // argument has to be a constant, enum constant or class literal, and an
+    // import (static or not) names members rather than loading them. Leave
+    // both untranslated.
+    @Override
+    public void visitAnnotation(JCTree.JCAnnotation node) {
+        result = node;
+    }
+
+    @Override
+    public void visitImport(JCTree.JCImport node) {
+        result = node;
+    }
+
     private JCTree.JCExpression boxedTypeExp(Type type, boolean abort) {
         String className;
         if (type.tag == TypeTags.BYTE)
@@ -123,30 +179,697 @@ public class InstrumentingTranslator<Checker extends InstrumentingChecker> exten
             return expr;
     }
 
+    // The access kind of an expression that reads or writes memory, or -1.
+    // Locals count only if they have been given a reference.
+    private int accessKind(JCTree.JCExpression expr) {
+        if (expr instanceof JCTree.JCArrayAccess)
+            return Instrumentor.ARRAY;
+        Symbol sym;
+        if (expr instanceof JCTree.JCIdent)
+            sym = ((JCTree.JCIdent)expr).sym;
+        else if (expr instanceof JCTree.JCFieldAccess)
+            sym = ((JCTree.JCFieldAccess)expr).sym;
+        else
+            return -1;
+        if (!(sym instanceof Symbol.VarSymbol))
+            return -1;
+        // An array's length is read from its header, not from a field or
+        // an element.
+        if (sym.owner == symtab.arrayClass)
+            return -1;
+        String name = sym.name.toString();
+        if (name.equals("this") || name.equals("super") ||
+                name.equals("class"))
+            return -1;
+        if (sym.owner instanceof Symbol.MethodSymbol)
+            return Instrumentor.LOCAL;
+        // Compile-time constants are not loads at the JVM level.
+        if (((Symbol.VarSymbol)sym).getConstValue() != null)
+            return -1;
+        return Instrumentor.FIELD;
+    }
+
+    private static final String[] KIND_NAMES = { "local", "field", "array" };
+
+    // Replace an rvalue memory access with its instrumented version.
+    private JCTree.JCExpression instrumentLoad(JCTree.JCExpression orig,
+                                               JCTree.JCExpression access,
+                                               int kind) {
+        int site = newSite("load-" + KIND_NAMES[kind], orig, orig.type, null);
+        JCTree.JCExpression out = instrumentor.instLoad(access, kind, site);
+        if (out == access)
+            return access;
+        out = hoisted(out, access, orig, site);
+        out = guarded(out, access);
+        out = explicitType(out, access);
+        attribute(out, access);
+        return out;
+    }
+
+    @Override
+    public void visitIdent(JCTree.JCIdent node) {
+        super.visitIdent(node);
+        if (skipIdents || lvalues.contains(node))
+            return;
+
+        int kind = accessKind(node);
+        if (kind == Instrumentor.LOCAL) {
+            // Only locals rewritten to their __REF__ are observable.
+            if (!instrumented.contains(result) ||
+                    !instrumentor.observesLoads(kind) ||
+                    !instrumentor.observesLocalLoads((Symbol.VarSymbol)node.sym))
+                return;
+        } else if (kind != Instrumentor.FIELD ||
+                   !instrumentor.observesLoads(kind)) {
+            return;
+        }
+        result = instrumentLoad(node, (JCTree.JCExpression)result, kind);
+    }
+
+    @Override
+    public void visitSelect(JCTree.JCFieldAccess node) {
+        super.visitSelect(node);
+        if (instrumented.contains(node) || lvalues.contains(node))
+            return;
+        if (accessKind(node) == Instrumentor.FIELD &&
+                instrumentor.observesLoads(Instrumentor.FIELD))
+            result = instrumentLoad(node, (JCTree.JCExpression)result,
+                                    Instrumentor.FIELD);
+    }
+
+    @Override
+    public void visitIndexed(JCTree.JCArrayAccess node) {
+        super.visitIndexed(node);
+        if (lvalues.contains(node))
+            return;
+        if (instrumentor.observesLoads(Instrumentor.ARRAY))
+            result = instrumentLoad(node, (JCTree.JCExpression)result,
+                                    Instrumentor.ARRAY);
+    }
+
     @Override
     public void visitAssign(JCTree.JCAssign node) {
+        JCTree.JCExpression origLhs = node.lhs;
         lvalues.add(node.lhs);
         super.visitAssign(node);
+
+        // The left-hand side has been translated by now (a local is its
+        // __REF__.value), so classify the original.
+        int kind = accessKind(origLhs);
+        if (kind < 0 || !instrumentor.observesStores(kind))
+            return;
+        if (kind == Instrumentor.LOCAL &&
+                (!instrumented.contains(node.lhs) ||
+                 !instrumentor.observesLocalStores(
+                     (Symbol.VarSymbol)((JCTree.JCIdent)origLhs).sym)))
+            return;
+
+        int site = newSite("store-" + KIND_NAMES[kind], node,
+                           origLhs.type, null);
+        JCTree.JCExpression rhs =
+            instrumentor.instStore(node.lhs, node.rhs, kind, site);
+        if (rhs != node.rhs) {
+            rhs = guarded(rhs, node.rhs);
+            rhs = explicitType(rhs, node.rhs);
+            attribute(rhs, node.rhs);
+            node.rhs = rhs;
+        }
+    }
+
+    // Whether evaluating an expression a second time, straight after the
+    // first, has the same effect and result: it names a local, a field
+    // or an array element through names and literals only.
+    private static boolean repeatable(JCTree.JCExpression expr) {
+        if (expr instanceof JCTree.JCIdent || expr instanceof JCTree.JCLiteral)
+            return true;
+        if (expr instanceof JCTree.JCFieldAccess)
+            return repeatable(((JCTree.JCFieldAccess)expr).selected);
+        if (expr instanceof JCTree.JCArrayAccess) {
+            JCTree.JCArrayAccess access = (JCTree.JCArrayAccess)expr;
+            return repeatable(access.indexed) && repeatable(access.index);
+        }
+        return false;
+    }
+
+    private static boolean isIntegral(Type type) {
+        switch (type.tag) {
+        case TypeTags.BYTE:
+        case TypeTags.CHAR:
+        case TypeTags.SHORT:
+        case TypeTags.INT:
+        case TypeTags.LONG:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    // A compound assignment or an increment or decrement both loads and
+    // stores its operand. When the instrumentor observes either, an update
+    // of a repeatable primitive or String operand is expanded, as the JLS
+    // defines it, into
+    //
+    //   lhs = (T)(lhs OP operand)
+    //
+    // (still untranslated), so that the copy of lhs on the right is
+    // instrumented as a load and the assignment as a store. The copy's
+    // qualifiers are not reported again. Returns null if the update is to
+    // be left alone, which leaves it unreported.
+    private JCTree.JCAssign expandedUpdate(JCTree.JCExpression lhs, int op,
+                                           JCTree.JCExpression operand) {
+        int kind = accessKind(lhs);
+        if (skipIdents || kind < 0 || lhs.type == null || !repeatable(lhs) ||
+                !(lhs.type.isPrimitive() ||
+                  jctypes.isSameType(lhs.type, symtab.stringType)))
+            return null;
+        if (kind == Instrumentor.LOCAL) {
+            Symbol.VarSymbol var = (Symbol.VarSymbol)((JCTree.JCIdent)lhs).sym;
+            if (plainLocals.contains(var) ||
+                    !(instrumentor.observesLoads(kind) &&
+                      instrumentor.observesLocalLoads(var)) &&
+                    !(instrumentor.observesStores(kind) &&
+                      instrumentor.observesLocalStores(var)))
+                return null;
+        } else if (!instrumentor.observesLoads(kind) &&
+                   !instrumentor.observesStores(kind)) {
+            return null;
+        }
+
+        TreeCopier<Void> copier = new TreeCopier<Void>(maker);
+        JCTree.JCExpression load = copier.copy(lhs);
+        if (load instanceof JCTree.JCFieldAccess) {
+            lvalues.add(((JCTree.JCFieldAccess)load).selected);
+        } else if (load instanceof JCTree.JCArrayAccess) {
+            lvalues.add(((JCTree.JCArrayAccess)load).indexed);
+            lvalues.add(((JCTree.JCArrayAccess)load).index);
+        }
+        JCTree.JCTypeCast value =
+            maker.TypeCast(lhs.type, maker.Binary(op, load, operand));
+        syntheticCasts.add(value);
+        return maker.Assign(lhs, value);
+    }
+
+    @Override
+    public void visitExec(JCTree.JCExpressionStatement node) {
+        if (node.expr instanceof JCTree.JCUnary)
+            discardedUpdates.add((JCTree.JCUnary)node.expr);
+        super.visitExec(node);
     }
 
     @Override
     public void visitAssignop(JCTree.JCAssignOp node) {
+        JCTree.JCAssign expanded = expandedUpdate(
+            node.lhs, node.getTag() - JCTree.ASGOffset, node.rhs);
+        if (expanded != null) {
+            attribute(expanded, node);
+            result = translate(expanded);
+            return;
+        }
         lvalues.add(node.lhs);
         super.visitAssignop(node);
     }
 
+    // ++x and --x become compound assignments (see expandedUpdate), and so
+    // do x++ and x-- when their value is discarded. A postfix update whose
+    // value is used becomes
+    //
+    //   (T)((x = (T)(x + 1)) - 1)
+    //
+    // which gives back the old value exactly for integral types, since
+    // their arithmetic wraps; floating-point ones are left unreported.
+    @Override
+    public void visitUnary(JCTree.JCUnary node) {
+        boolean up;
+        switch (node.getKind()) {
+        case PREFIX_INCREMENT:
+        case POSTFIX_INCREMENT:
+            up = true;
+            break;
+        case PREFIX_DECREMENT:
+        case POSTFIX_DECREMENT:
+            up = false;
+            break;
+        default:
+            super.visitUnary(node);
+            return;
+        }
+
+        boolean valueUsed = !discardedUpdates.contains(node) &&
+            (node.getKind() == Kind.POSTFIX_INCREMENT ||
+             node.getKind() == Kind.POSTFIX_DECREMENT);
+        JCTree.JCAssign expanded = null;
+        if (!valueUsed || (node.arg.type != null && isIntegral(node.arg.type)))
+            expanded = expandedUpdate(node.arg,
+                                      up ? JCTree.PLUS : JCTree.MINUS,
+                                      intExp(1));
+        if (expanded != null) {
+            JCTree.JCExpression out = expanded;
+            if (valueUsed) {
+                JCTree.JCTypeCast old = maker.TypeCast(node.arg.type,
+                    maker.Binary(up ? JCTree.MINUS : JCTree.PLUS,
+                                 expanded, intExp(1)));
+                syntheticCasts.add(old);
+                out = old;
+            }
+            attribute(out, node);
+            result = translate(out);
+            return;
+        }
+
+        // Like compound assignments, updates that stay must keep an
+        // assignable operand.
+        lvalues.add(node.arg);
+        super.visitUnary(node);
+    }
+
+    protected static final String SAMPLER_CLASS =
+        checkers.runtime.rt.Sampler.class.getName();
+    protected static final String SWITCH_CLASS =
+        checkers.runtime.rt.HookSwitch.class.getName();
+
+    // Guard an instrumented expression so that it only runs when the
+    // run-time switch is on (-Ajillswitch) and the Sampler picks the event
+    // (-Ajillsample):
+    //   HookSwitch.enabled() && Sampler.every(N) ? instrumented : original
+    // The original is copied, since the instrumented version usually
+    // contains it.
+    protected JCTree.JCExpression guarded(JCTree.JCExpression instrumented,
+                                          JCTree.JCExpression original) {
+        if (instrumented == original)
+            return instrumented;
+
+        JCTree.JCExpression test = null;
+        if (checker.switchable()) {
+            test = maker.Apply(null, dotsExp(SWITCH_CLASS + ".enabled"),
+                List.<JCTree.JCExpression>nil());
+        }
+
+        JCTree.JCExpression sample = null;
+        if (checker.samplePeriod() > 0) {
+            sample = maker.Apply(null, dotsExp(SAMPLER_CLASS + ".every"),
+                List.<JCTree.JCExpression>of(intExp(checker.samplePeriod())));
+        } else if (checker.sampleRate() > 0.0) {
+            sample = maker.Apply(null, dotsExp(SAMPLER_CLASS + ".random"),
+                List.<JCTree.JCExpression>of(
+                    maker.Literal(TypeTags.DOUBLE, checker.sampleRate())));
+        }
+        if (sample != null)
+            test = (test == null) ? sample :
+                maker.Binary(JCTree.AND, test, sample);
+
+        if (test == null)
+            return instrumented;
+        TreeCopier<Void> copier = new TreeCopier<Void>(maker);
+        return maker.Conditional(test, instrumented, copier.copy(original));
+    }
+
+    // Register an instrumented site in the checker's site table, returning
+    // its dense ID.
+    protected int newSite(String kind, JCTree tree, Type from, Type to) {
+        return checker.sites().add(kind, sourceName(), lineOf(tree),
+                                   tree.toString(),
+                                   from == null ? null : from.toString(),
+                                   to == null ? null : to.toString());
+    }
+
+    // The site of the check that makes a check redundant, or null if it is
+    // not (or if that check was never instrumented). Only checks the
+    // instrumentor actually instrumented are in checkSites: an instrumentor
+    // that leaves type tests alone must not have them stand in for casts.
+    private Integer dominatingSite(JCTree check) {
+        JCTree dominator = redundantChecks.get(check);
+        return dominator == null ? null : checkSites.get(dominator);
+    }
+
     @Override
     public void visitTypeTest(JCTree.JCInstanceOf node) {
-        JCTree.JCExpression out = instrumentor.instInstanceOf(node);
+        int site = newSite("instanceof", node, node.expr.type, node.clazz.type);
+        Integer dominator = dominatingSite(node);
+        if (dominator != null) {
+            result = redundantCheck(node, site, dominator);
+            return;
+        }
+        JCTree.JCExpression out = instrumentor.instInstanceOf(node, site);
+        if (out != node)
+            checkSites.put(node, site);
+        out = hoisted(out, node, node, site);
+        out = guarded(out, node);
         out = explicitType(out, node);
         attribute(out, node);
         result = out;
     }
     @Override
     public void visitTypeCast(JCTree.JCTypeCast node) {
-        JCTree.JCExpression out = instrumentor.instCast(node);
+        if (syntheticCasts.contains(node)) {
+            super.visitTypeCast(node);
+            return;
+        }
+        int site = newSite("cast", node, node.expr.type, node.clazz.type);
+        Integer dominator = dominatingSite(node);
+        if (dominator != null) {
+            result = redundantCheck(node, site, dominator);
+            return;
+        }
+        JCTree.JCExpression out = instrumentor.instCast(node, site);
+        if (out != node)
+            checkSites.put(node, site);
+        out = hoisted(out, node, node, site);
+        out = guarded(out, node);
         out = explicitType(out, node);
         attribute(out, node);
         result = out;
     }
+
+    private JCTree.JCExpression redundantCheck(JCTree.JCExpression node,
+                                               int site, int dominator) {
+        JCTree.JCExpression out =
+            instrumentor.instRedundantCheck(node, site, dominator);
+        if (out == node)
+            return node;
+        out = guarded(out, node);
+        out = explicitType(out, node);
+        attribute(out, node);
+        return out;
+    }
+
+    // The creator of objects created at the current point: "this" in the
+    // body of an instance method or constructor, null in static code, in
+    // initializers, and in this() and super() calls (where "this" cannot be
+    // used yet).
+    public JCTree.JCExpression creatorExp() {
+        JCTree.JCClassDecl class_ = null;
+        JCTree.JCMethodDecl method = null;
+        for (JCTree tree : visitingScopes) {
+            if (tree instanceof JCTree.JCClassDecl) {
+                class_ = (JCTree.JCClassDecl)tree;
+                method = null;
+            } else if (tree instanceof JCTree.JCMethodDecl) {
+                method = (JCTree.JCMethodDecl)tree;
+            }
+        }
+        if (class_ == null || method == null || skipIdents ||
+                (method.mods.flags & Flags.STATIC) != 0)
+            return nullExp();
+        return maker.This(class_.sym.type);
+    }
+
+    // Creations of the runtime's own classes (such as the references made
+    // for locals) are never instrumented.
+    private boolean isRuntimeType(Type type) {
+        return type.tsym.packge().getQualifiedName().toString()
+            .equals(REFERENCE_PACKAGE);
+    }
+
+    @Override
+    public void visitVarDef(JCTree.JCVariableDecl node) {
+        if ((node.mods.flags & Flags.ENUM) != 0 &&
+                node.init instanceof JCTree.JCNewClass)
+            enumConstants.add((JCTree.JCNewClass)node.init);
+        super.visitVarDef(node);
+    }
+
+    @Override
+    public void visitNewClass(JCTree.JCNewClass node) {
+        super.visitNewClass(node);
+        if (instrumentor.creationRuntime() == null || node.type == null ||
+                isRuntimeType(node.type) || enumConstants.contains(node))
+            return;
+
+        int site = newSite("new", node, null, node.type);
+        JCTree.JCExpression out = instrumentor.instNewClass(
+            node, objectSizes.instanceSize(node.type), site);
+        if (out == node)
+            return;
+        // Guarding copies the original, which would duplicate the body of
+        // an anonymous class.
+        if (node.def == null)
+            out = guarded(out, node);
+        out = explicitType(out, node);
+        attribute(out, node);
+        result = out;
+    }
+
+    @Override
+    public void visitNewArray(JCTree.JCNewArray node) {
+        super.visitNewArray(node);
+        if (instrumentor.creationRuntime() == null || node.type == null)
+            return;
+
+        Type elemType = jctypes.elemtype(node.type);
+        // A bare initializer ("int[] a = {1, 2};") cannot be passed to a
+        // method; spell out its type.
+        if (node.elemtype == null)
+            node.elemtype = maker.Type(elemType);
+
+        int site = newSite("newarray", node, null, node.type);
+        JCTree.JCExpression out = instrumentor.instNewArray(
+            node, jctypes.dimensions(node.type),
+            objectSizes.elementSize(elemType), objectSizes.arrayBaseSize(),
+            site);
+        if (out == node)
+            return;
+        out = guarded(out, node);
+        out = explicitType(out, node);
+        attribute(out, node);
+        result = out;
+    }
+
+    // Announce the object to the runtime at the start of each constructor
+    // that calls super(). Constructors that delegate with this() leave it
+    // to the one they call. When the superclass is instrumented too, the
+    // object is announced again by each constructor in the chain; the
+    // runtime only counts the first (see Runtime.enterConstructor).
+    //
+    // With -Ajillelide, the method's redundant checks are found first, while
+    // its body is still the original source.
+    @Override
+    public void visitMethodDef(JCTree.JCMethodDecl node) {
+        if (checker.elideRedundant() && node.body != null)
+            redundantChecks.putAll(
+                RedundantCheckScanner.analyze(node, jctypes));
+        super.visitMethodDef(node);
+        if (instrumentor.creationRuntime() == null || node.body == null ||
+                !node.sym.isConstructor())
+            return;
+
+        List<JCTree.JCStatement> first = node.body.stats;
+        if (first.head == null || !constructorCalls.contains(first.head))
+            return;
+        JCTree.JCMethodInvocation call = (JCTree.JCMethodInvocation)
+            ((JCTree.JCExpressionStatement)first.head).expr;
+        if (TreeInfo.name(call.meth) != names._super)
+            return;
+
+        JCTree.JCStatement entry = instrumentor.instConstructorEntry(node);
+        if (entry == null)
+            return;
+        first.tail = first.tail.prepend(entry);
+        attributeInMethod(entry, node, node.body);
+    }
+
+    // A try statement with catch clauses, in a block, becomes
+    //
+    //   { int try0__DEPTH__ = ENTRY;
+    //     try { ... }
+    //     catch (E e) { CATCH(try0__DEPTH__); ... } }
+    //
+    // with ENTRY and CATCH from instTryEntry and instCatchEntry, so a
+    // creation hook stack can drop the entries of creations that threw.
+    // Like a hoisted loop, the wrapper takes the try's place before the try
+    // is translated, so that attribution in the catch clauses sees the
+    // local; a labeled try is left alone.
+    @Override
+    public void visitTry(JCTree.JCTry node) {
+        JCTree.JCExpression entry = null;
+        List<JCTree.JCStatement> link = null;
+        if (!node.catchers.isEmpty() && !visitingScopes.isEmpty() &&
+                visitingScopes.peek() instanceof JCTree.JCBlock) {
+            link = ((JCTree.JCBlock)visitingScopes.peek()).stats;
+            while (link.head != null && link.head != node)
+                link = link.tail;
+            if (link.head != null)
+                entry = instrumentor.instTryEntry(node);
+        }
+        if (entry == null) {
+            super.visitTry(node);
+            return;
+        }
+
+        JCTree.JCVariableDecl depth = maker.VarDef(
+            maker.Modifiers(0),
+            names.fromString("try" + tryDepths++ + "__DEPTH__"),
+            maker.TypeIdent(TypeTags.INT),
+            entry);
+        JCTree.JCBlock wrapper = maker.Block(0, List.of(depth, node));
+        link.head = wrapper;
+        attributeInBlock(depth, wrapper);
+
+        super.visitTry(node);
+        for (JCTree.JCCatch catcher : ((JCTree.JCTry)result).catchers) {
+            JCTree.JCStatement unwind = instrumentor.instCatchEntry(
+                catcher, maker.Ident(depth.name));
+            if (unwind == null)
+                continue;
+            catcher.body.stats = catcher.body.stats.prepend(unwind);
+            attributeInBlock(unwind, catcher.body);
+        }
+        wrapper.stats = List.of(depth, (JCTree.JCStatement)result);
+        result = wrapper;
+    }
+
+    // Instrumentation hoisted out of a for loop (-Ajillhoist). The loop is
+    // wrapped as
+    //
+    //   { long loop0__COUNT__ = 0L; ...
+    //     try { LOOP }
+    //     finally {
+    //       if (loop0__COUNT__ > 1L) BATCH(loop0__COUNT__ - 1L); ...
+    //     } }
+    //
+    // and each instrumented loop-invariant event (see LoopInvariantScanner)
+    // becomes
+    //
+    //   loop0__COUNT__++ == 0L ? INSTRUMENTED : ORIGINAL
+    //
+    // so only its first occurrence reaches the runtime, and the rest are
+    // reported by the instrumentor's instRepeated statement when the loop
+    // exits, however it exits. Events stay where they are rather than moving
+    // in front of the loop, so a loop that runs zero times reports nothing
+    // and a cast that would fail still fails in place.
+    //
+    // The counters are declared before the loop is translated, so that the
+    // instrumented events can be attributed against them; those that end up
+    // unused are dropped again, and so is the wrapper if none is used.
+    private class LoopHoisting {
+        private final List<JCTree.JCStatement> link;
+        private final JCTree.JCBlock wrapper;
+        private final JCTree.JCBlock body;
+        private final JCTree.JCBlock finalizer;
+        private final Map<JCTree, JCTree.JCVariableDecl> counters =
+            new HashMap<JCTree, JCTree.JCVariableDecl>();
+        private final Set<JCTree.JCVariableDecl> used =
+            new HashSet<JCTree.JCVariableDecl>();
+        private List<JCTree.JCStatement> batches = List.nil();
+
+        LoopHoisting(JCTree.JCStatement loop, List<JCTree.JCStatement> link,
+                     Set<JCTree> events) {
+            this.link = link;
+            List<JCTree.JCStatement> decls = List.nil();
+            for (JCTree event : events) {
+                JCTree.JCVariableDecl counter = maker.VarDef(
+                    maker.Modifiers(0),
+                    names.fromString("loop" + loopCounters++ + "__COUNT__"),
+                    maker.TypeIdent(TypeTags.LONG),
+                    longExp(0L));
+                counters.put(event, counter);
+                hoistedEvents.put(event, this);
+                decls = decls.append(counter);
+            }
+            body = maker.Block(0, List.of(loop));
+            finalizer = maker.Block(0, List.<JCTree.JCStatement>nil());
+            wrapper = maker.Block(0, decls.append(
+                maker.Try(body, List.<JCTree.JCCatch>nil(), finalizer)));
+
+            // Put the wrapper in the loop's place now, so that attribution
+            // inside the loop sees the counters.
+            link.head = wrapper;
+            for (JCTree.JCStatement decl : decls)
+                attributeInBlock(decl, wrapper);
+        }
+
+        JCTree.JCExpression count(JCTree.JCExpression instrumented,
+                                  JCTree.JCExpression original,
+                                  JCTree event, int site) {
+            JCTree.JCVariableDecl counter = counters.get(event);
+            JCTree.JCStatement batch = instrumentor.instRepeated(
+                event, site,
+                maker.Binary(JCTree.MINUS, maker.Ident(counter.name),
+                             longExp(1L)));
+            if (batch == null)
+                return instrumented;
+            used.add(counter);
+            batches = batches.append(maker.If(
+                maker.Binary(JCTree.GT, maker.Ident(counter.name),
+                             longExp(1L)),
+                batch, null));
+
+            JCTree.JCExpression first = maker.Binary(
+                JCTree.EQ,
+                maker.Unary(JCTree.POSTINC, maker.Ident(counter.name)),
+                longExp(0L));
+            TreeCopier<Void> copier = new TreeCopier<Void>(maker);
+            return maker.Conditional(first, instrumented,
+                                     copier.copy(original));
+        }
+
+        // Finish with the translated loop; returns its replacement.
+        JCTree.JCStatement end(JCTree.JCStatement loop) {
+            for (JCTree event : counters.keySet())
+                hoistedEvents.remove(event);
+            if (used.isEmpty()) {
+                link.head = loop;
+                return loop;
+            }
+
+            body.stats = List.of(loop);
+            List<JCTree.JCStatement> stats = List.nil();
+            for (JCTree.JCStatement stat : wrapper.stats) {
+                if (!(stat instanceof JCTree.JCVariableDecl) ||
+                        used.contains(stat))
+                    stats = stats.append(stat);
+            }
+            wrapper.stats = stats;
+            finalizer.stats = batches;
+            for (JCTree.JCStatement batch : batches)
+                attributeInBlock(batch, finalizer);
+            return wrapper;
+        }
+    }
+
+    // Start hoisting out of a loop, or return null if there is nothing to
+    // hoist. Only loops that are statements of a block are hoisted: a
+    // labeled loop would lose its label to the wrapper.
+    private LoopHoisting beginHoisting(JCTree.JCStatement loop) {
+        if (!checker.hoistLoops() || visitingScopes.isEmpty() ||
+                !(visitingScopes.peek() instanceof JCTree.JCBlock))
+            return null;
+        JCTree.JCBlock block = (JCTree.JCBlock)visitingScopes.peek();
+        List<JCTree.JCStatement> link = block.stats;
+        while (link.head != null && link.head != loop)
+            link = link.tail;
+        if (link.head == null)
+            return null;
+
+        // Events already counted by an enclosing loop stay with it.
+        Set<JCTree> events = LoopInvariantScanner.analyze(loop);
+        events.removeAll(hoistedEvents.keySet());
+        if (events.isEmpty())
+            return null;
+        return new LoopHoisting(loop, link, events);
+    }
+
+    private JCTree.JCExpression hoisted(JCTree.JCExpression instrumented,
+                                        JCTree.JCExpression original,
+                                        JCTree event, int site) {
+        LoopHoisting loop = hoistedEvents.get(event);
+        if (loop == null || instrumented == original)
+            return instrumented;
+        return loop.count(instrumented, original, event, site);
+    }
+
+    @Override
+    public void visitForLoop(JCTree.JCForLoop node) {
+        LoopHoisting hoisting = beginHoisting(node);
+        super.visitForLoop(node);
+        if (hoisting != null)
+            result = hoisting.end((JCTree.JCStatement)result);
+    }
+
+    @Override
+    public void visitForeachLoop(JCTree.JCEnhancedForLoop node) {
+        LoopHoisting hoisting = beginHoisting(node);
+        super.visitForeachLoop(node);
+        if (hoisting != null)
+            result = hoisting.end((JCTree.JCStatement)result);
+    }
 }
@@ -0,0 +1,135 @@
+package checkers.runtime.instrument;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.comp.Attr;
+import com.sun.tools.javac.comp.AttrContext;
+import com.sun.tools.javac.comp.Env;
+import com.sun.tools.javac.comp.MemberEnter;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Log;
+
+// Access to the non-public javac internals the translators depend on. Every
+// member is resolved once per compiler context, when the checker is
+// initialized, into a MethodHandle bound to the context's component; a
+// missing member is reported immediately rather than on first use. Calls
+// then cost a direct invoke instead of a reflective lookup.
+public final class JavacInternals {
+    protected static final Context.Key<JavacInternals> key =
+        new Context.Key<JavacInternals>();
+
+    // MemberEnter.memberEnter(JCTree, Env), bound to the context's instance.
+    private final MethodHandle memberEnter;
+    // Attr.attribExpr(JCTree, Env), bound to the context's instance.
+    private final MethodHandle attribExpr;
+    // Getter for Log.MaxErrors.
+    private final MethodHandle maxErrors;
+
+    private final Log log;
+
+    public static JavacInternals instance(Context context) {
+        JavacInternals instance = context.get(key);
+        if (instance == null) {
+            instance = new JavacInternals(context);
+            context.put(key, instance);
+        }
+        return instance;
+    }
+
+    private JavacInternals(Context context) {
+        log = Log.instance(context);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Method me = MemberEnter.class.getDeclaredMethod(
+                "memberEnter", JCTree.class, Env.class);
+            me.setAccessible(true);
+            memberEnter = lookup.unreflect(me)
+                .bindTo(MemberEnter.instance(context));
+
+            Method ae = Attr.class.getDeclaredMethod(
+                "attribExpr", JCTree.class, Env.class);
+            ae.setAccessible(true);
+            attribExpr = lookup.unreflect(ae)
+                .bindTo(Attr.instance(context));
+
+            Field me_ = Log.class.getDeclaredField("MaxErrors");
+            me_.setAccessible(true);
+            maxErrors = lookup.unreflectGetter(me_).bindTo(log);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(
+                "this javac does not provide the internals the " +
+                "instrumenting translators need", e);
+        }
+    }
+
+    // Rethrow whatever a handle threw, wrapping checked exceptions (which
+    // none of the targets declare).
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException)
+            return (RuntimeException)t;
+        if (t instanceof Error)
+            throw (Error)t;
+        return new RuntimeException(t);
+    }
+
+    // Enter a new member into a class's scope.
+    public void memberEnter(JCTree tree, Env<AttrContext> env) {
+        try {
+            memberEnter.invokeExact(tree, env);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // Attribute an expression and get its type.
+    public Type attribExpr(JCTree tree, Env<AttrContext> env) {
+        try {
+            return (Type)attribExpr.invokeExact(tree, env);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // Silences error reporting for speculative attribution, e.g. while
+    // computing an environment when *other* parts of the code are not yet
+    // valid. Use as:
+    //
+    //   DiagnosticSuppression s = internals.suppressDiagnostics();
+    //   try { ... } finally { s.close(); }
+    //
+    // Suppressions nest.
+    public final class DiagnosticSuppression {
+        private final int savedErrors;
+        private boolean closed = false;
+
+        private DiagnosticSuppression() {
+            savedErrors = log.nerrors;
+            // Log stops reporting once the error limit has been reached.
+            log.nerrors = Math.max(log.nerrors, maxErrors());
+        }
+
+        public void close() {
+            if (!closed) {
+                log.nerrors = savedErrors;
+                closed = true;
+            }
+        }
+    }
+
+    public DiagnosticSuppression suppressDiagnostics() {
+        return new DiagnosticSuppression();
+    }
+
+    private int maxErrors() {
+        try {
+            return (int)maxErrors.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package checkers.runtime.instrument;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeScanner;
+
+// Finds the instrumentable events in a loop that see the same value on
+// every iteration: loads of locals the loop never assigns, and casts and
+// type tests of such locals (which therefore also have the same outcome
+// every time). Used for -Ajillhoist.
+//
+// Nothing else is batched: an event on a value that may differ between
+// iterations (a cast of a method call's result, a load of a local the loop
+// updates) carries information the runtime could not recover from a
+// count, so it stays instrumented on every iteration.
+//
+// The loop's own variables (for-loop initializers and the enhanced-for
+// variable) count as assigned. Local and anonymous class bodies are not
+// searched: they are separate methods, and could not update the loop's
+// counters anyway.
+class LoopInvariantScanner extends TreeScanner {
+    private final Set<Symbol.VarSymbol> assigned;
+    private final Set<JCTree> invariant = new LinkedHashSet<JCTree>();
+
+    private LoopInvariantScanner(JCTree.JCStatement loop) {
+        assigned = RedundantCheckScanner.assignedIn(loop);
+    }
+
+    // The loop-invariant loads (identifiers), casts and type tests in a
+    // for or enhanced-for loop.
+    public static Set<JCTree> analyze(JCTree.JCStatement loop) {
+        LoopInvariantScanner scanner = new LoopInvariantScanner(loop);
+        if (loop instanceof JCTree.JCForLoop) {
+            JCTree.JCForLoop l = (JCTree.JCForLoop)loop;
+            // The initializers run once, before the loop.
+            scanner.scan(l.cond);
+            scanner.scan(l.step);
+            scanner.scan(l.body);
+        } else {
+            scanner.scan(((JCTree.JCEnhancedForLoop)loop).body);
+        }
+        return scanner.invariant;
+    }
+
+    private boolean isInvariant(JCTree.JCExpression expr) {
+        Symbol.VarSymbol var = RedundantCheckScanner.localOf(expr);
+        if (var == null || assigned.contains(var))
+            return false;
+        String name = var.name.toString();
+        return !name.equals("this") && !name.equals("super");
+    }
+
+    @Override
+    public void visitIdent(JCTree.JCIdent node) {
+        if (isInvariant(node))
+            invariant.add(node);
+    }
+
+    @Override
+    public void visitTypeCast(JCTree.JCTypeCast node) {
+        super.visitTypeCast(node);
+        if (node.clazz.type != null && !node.clazz.type.isPrimitive() &&
+                isInvariant(node.expr))
+            invariant.add(node);
+    }
+
+    @Override
+    public void visitTypeTest(JCTree.JCInstanceOf node) {
+        super.visitTypeTest(node);
+        if (isInvariant(node.expr))
+            invariant.add(node);
+    }
+
+    @Override
+    public void visitClassDef(JCTree.JCClassDecl node) {
+    }
+
+    @Override
+    public void visitNewClass(JCTree.JCNewClass node) {
+        scan(node.encl);
+        scan(node.args);
+    }
+}
@@ -0,0 +1,113 @@
+package checkers.runtime.instrument;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.tools.javac.code.Flags;
+import com.sun.tools.javac.code.Kinds;
+import com.sun.tools.javac.code.Scope;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.code.TypeTags;
+
+// Compile-time estimates of the memory taken by objects and array elements,
+// passed to the creation hooks so that the runtime never has to measure
+// objects reflectively. The model is HotSpot's 64-bit layout:
+//
+//   - an object header of 12 bytes with compressed class pointers, 16
+//     without;
+//   - references of 4 bytes with compressed oops, 8 without;
+//   - each class's fields laid out after its superclass's, largest first,
+//     with longs and doubles 8-byte aligned (smaller fields fill the gap
+//     before them when there are enough);
+//   - instance sizes rounded up to 8 bytes.
+//
+// The field layout of each class is computed once and cached by symbol,
+// so superclasses shared by many classes are only visited once.
+public class ObjectSizes {
+    public static final int ALIGNMENT = 8;
+
+    private final int headerSize;
+    private final int referenceSize;
+
+    // End of the laid-out fields (not yet rounded), per class.
+    private final Map<Symbol.ClassSymbol, Integer> fieldsEnd =
+        new HashMap<Symbol.ClassSymbol, Integer>();
+
+    public ObjectSizes(boolean compressedOops) {
+        headerSize = compressedOops ? 12 : 16;
+        referenceSize = compressedOops ? 4 : 8;
+    }
+
+    // The size of a field or array element of the given type.
+    public int elementSize(Type type) {
+        switch (type.tag) {
+        case TypeTags.BYTE:
+        case TypeTags.BOOLEAN:
+            return 1;
+        case TypeTags.CHAR:
+        case TypeTags.SHORT:
+            return 2;
+        case TypeTags.INT:
+        case TypeTags.FLOAT:
+            return 4;
+        case TypeTags.LONG:
+        case TypeTags.DOUBLE:
+            return 8;
+        default:
+            return referenceSize;
+        }
+    }
+
+    // The size of an array with no elements: the header and the length.
+    public int arrayBaseSize() {
+        return align(headerSize + 4);
+    }
+
+    // The size of an instance of the given class type.
+    public int instanceSize(Type type) {
+        if (type == null || type.tag != TypeTags.CLASS)
+            return align(headerSize);
+        return align(fieldsEnd((Symbol.ClassSymbol)type.tsym));
+    }
+
+    private static int align(int size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private int fieldsEnd(Symbol.ClassSymbol cls) {
+        Integer cached = fieldsEnd.get(cls);
+        if (cached != null)
+            return cached;
+
+        int start = headerSize;
+        Type sup = cls.getSuperclass();
+        if (sup != null && sup.tag == TypeTags.CLASS)
+            start = fieldsEnd((Symbol.ClassSymbol)sup.tsym);
+
+        int wide = 0;  // Bytes in 8-byte fields.
+        int narrow = 0;  // Bytes in smaller fields.
+        for (Scope.Entry e = cls.members().elems; e != null; e = e.sibling) {
+            Symbol sym = e.sym;
+            if (sym.kind != Kinds.VAR || (sym.flags() & Flags.STATIC) != 0)
+                continue;
+            int size = elementSize(sym.type);
+            if (size == 8)
+                wide += 8;
+            else
+                narrow += size;
+        }
+
+        int end = start + wide + narrow;
+        if (wide > 0 && start % 8 != 0) {
+            // The wide fields start at the next 8-byte boundary; whatever
+            // the narrow fields cannot fill before it is padding.
+            int gap = 8 - start % 8;
+            if (narrow < gap)
+                end += gap - narrow;
+        }
+
+        fieldsEnd.put(cls, end);
+        return end;
+    }
+}
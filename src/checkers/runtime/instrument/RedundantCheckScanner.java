@@ -0,0 +1,312 @@
+package checkers.runtime.instrument;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.code.Types;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeInfo;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.util.List;
+
+// Finds the casts and type tests in a method that are redundant: a check of
+// a local variable against a type, such as the casts in
+//
+//   if (o instanceof Foo) { ((Foo)o).a(); ((Foo)o).b(); }
+//
+// that is always preceded by a check of the same local against the same
+// (erased) type, with no assignment to the local in between. Used for
+// -Ajillelide.
+//
+// The analysis walks the method in evaluation order, keeping the checks
+// known to have run on every path to the current point ("facts"). It is
+// deliberately conservative about control flow: whatever happens in a
+// branch, loop body, case, try block or labeled statement is forgotten
+// after it (minus any facts about variables assigned there), and a loop
+// first forgets everything about the variables it assigns. Local and
+// anonymous class bodies are left to their own methods' analyses.
+class RedundantCheckScanner extends TreeScanner {
+    private final Types types;
+    // For each local, the checks of it that have run on every path here.
+    private Map<Symbol.VarSymbol, List<JCTree>> facts =
+        new HashMap<Symbol.VarSymbol, List<JCTree>>();
+    // Redundant check -> the earlier check that makes it so.
+    private final Map<JCTree, JCTree> redundant =
+        new HashMap<JCTree, JCTree>();
+
+    private RedundantCheckScanner(Types types) {
+        this.types = types;
+    }
+
+    // The redundant checks in a method, mapped to the checks that dominate
+    // them. A dominating check is never itself redundant.
+    public static Map<JCTree, JCTree> analyze(JCTree.JCMethodDecl method,
+                                              Types types) {
+        RedundantCheckScanner scanner = new RedundantCheckScanner(types);
+        scanner.scan(method.body);
+        return scanner.redundant;
+    }
+
+    // The local variable an expression reads, or null.
+    static Symbol.VarSymbol localOf(JCTree.JCExpression expr) {
+        expr = TreeInfo.skipParens(expr);
+        if (!(expr instanceof JCTree.JCIdent))
+            return null;
+        Symbol sym = ((JCTree.JCIdent)expr).sym;
+        if (sym instanceof Symbol.VarSymbol &&
+                sym.owner instanceof Symbol.MethodSymbol)
+            return (Symbol.VarSymbol)sym;
+        return null;
+    }
+
+    private static Type checkedType(JCTree check) {
+        if (check instanceof JCTree.JCTypeCast)
+            return ((JCTree.JCTypeCast)check).clazz.type;
+        return ((JCTree.JCInstanceOf)check).clazz.type;
+    }
+
+    private void check(JCTree node, JCTree.JCExpression operand, Type type) {
+        Symbol.VarSymbol var = localOf(operand);
+        if (var == null || type == null || type.isPrimitive())
+            return;
+        Type erased = types.erasure(type);
+        List<JCTree> prior = facts.get(var);
+        if (prior == null)
+            prior = List.nil();
+        for (JCTree p : prior) {
+            if (types.isSameType(types.erasure(checkedType(p)), erased)) {
+                redundant.put(node, p);
+                return;
+            }
+        }
+        facts.put(var, prior.prepend(node));
+    }
+
+    // Variables assigned anywhere in a tree (outside nested classes).
+    static Set<Symbol.VarSymbol> assignedIn(JCTree tree) {
+        final Set<Symbol.VarSymbol> assigned = new HashSet<Symbol.VarSymbol>();
+        new TreeScanner() {
+            private void add(JCTree.JCExpression lhs) {
+                Symbol.VarSymbol var = localOf(lhs);
+                if (var != null)
+                    assigned.add(var);
+            }
+            @Override
+            public void visitAssign(JCTree.JCAssign node) {
+                add(node.lhs);
+                super.visitAssign(node);
+            }
+            @Override
+            public void visitAssignop(JCTree.JCAssignOp node) {
+                add(node.lhs);
+                super.visitAssignop(node);
+            }
+            @Override
+            public void visitUnary(JCTree.JCUnary node) {
+                if (isIncrement(node))
+                    add(node.arg);
+                super.visitUnary(node);
+            }
+            @Override
+            public void visitVarDef(JCTree.JCVariableDecl node) {
+                if (node.sym != null)
+                    assigned.add(node.sym);
+                super.visitVarDef(node);
+            }
+            @Override
+            public void visitClassDef(JCTree.JCClassDecl node) {
+            }
+        }.scan(tree);
+        return assigned;
+    }
+
+    private static boolean isIncrement(JCTree.JCUnary node) {
+        switch (node.getKind()) {
+        case PREFIX_INCREMENT:
+        case PREFIX_DECREMENT:
+        case POSTFIX_INCREMENT:
+        case POSTFIX_DECREMENT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private void kill(Symbol.VarSymbol var) {
+        facts.remove(var);
+    }
+
+    private void killAssignedIn(JCTree tree) {
+        if (tree == null)
+            return;
+        for (Symbol.VarSymbol var : assignedIn(tree))
+            kill(var);
+    }
+
+    // Scan trees that may or may not run: afterwards, only the facts from
+    // before them survive, and not those about variables they assign.
+    private void conditionally(JCTree tree) {
+        Map<Symbol.VarSymbol, List<JCTree>> before =
+            new HashMap<Symbol.VarSymbol, List<JCTree>>(facts);
+        scan(tree);
+        facts = before;
+        killAssignedIn(tree);
+    }
+
+    // Checks.
+
+    @Override
+    public void visitTypeCast(JCTree.JCTypeCast node) {
+        scan(node.expr);
+        check(node, node.expr, node.clazz.type);
+    }
+
+    @Override
+    public void visitTypeTest(JCTree.JCInstanceOf node) {
+        scan(node.expr);
+        check(node, node.expr, node.clazz.type);
+    }
+
+    // Assignments.
+
+    @Override
+    public void visitAssign(JCTree.JCAssign node) {
+        Symbol.VarSymbol var = localOf(node.lhs);
+        if (var == null)
+            scan(node.lhs);
+        scan(node.rhs);
+        if (var != null)
+            kill(var);
+    }
+
+    @Override
+    public void visitAssignop(JCTree.JCAssignOp node) {
+        super.visitAssignop(node);
+        Symbol.VarSymbol var = localOf(node.lhs);
+        if (var != null)
+            kill(var);
+    }
+
+    @Override
+    public void visitUnary(JCTree.JCUnary node) {
+        super.visitUnary(node);
+        Symbol.VarSymbol var = isIncrement(node) ? localOf(node.arg) : null;
+        if (var != null)
+            kill(var);
+    }
+
+    @Override
+    public void visitVarDef(JCTree.JCVariableDecl node) {
+        scan(node.init);
+        if (node.sym != null)
+            kill(node.sym);
+    }
+
+    // Control flow.
+
+    @Override
+    public void visitBinary(JCTree.JCBinary node) {
+        if (node.getTag() == JCTree.AND || node.getTag() == JCTree.OR) {
+            scan(node.lhs);
+            conditionally(node.rhs);
+        } else {
+            super.visitBinary(node);
+        }
+    }
+
+    @Override
+    public void visitConditional(JCTree.JCConditional node) {
+        scan(node.cond);
+        conditionally(node.truepart);
+        conditionally(node.falsepart);
+    }
+
+    @Override
+    public void visitIf(JCTree.JCIf node) {
+        scan(node.cond);
+        conditionally(node.thenpart);
+        conditionally(node.elsepart);
+    }
+
+    @Override
+    public void visitWhileLoop(JCTree.JCWhileLoop node) {
+        killAssignedIn(node);
+        // The condition runs before every iteration and at least once.
+        scan(node.cond);
+        conditionally(node.body);
+    }
+
+    @Override
+    public void visitDoLoop(JCTree.JCDoWhileLoop node) {
+        killAssignedIn(node);
+        // A continue can skip the rest of the body, so even a do-while
+        // body is only conditionally complete at the condition.
+        conditionally(node.body);
+        scan(node.cond);
+    }
+
+    @Override
+    public void visitForLoop(JCTree.JCForLoop node) {
+        scan(node.init);
+        killAssignedIn(node);
+        scan(node.cond);
+        Map<Symbol.VarSymbol, List<JCTree>> before =
+            new HashMap<Symbol.VarSymbol, List<JCTree>>(facts);
+        // A continue skips the rest of the body but still runs the step, so
+        // the step only sees what held at the condition, as in a do-while.
+        conditionally(node.body);
+        scan(node.step);
+        facts = before;
+    }
+
+    @Override
+    public void visitForeachLoop(JCTree.JCEnhancedForLoop node) {
+        scan(node.expr);
+        killAssignedIn(node.body);
+        if (node.var.sym != null)
+            kill(node.var.sym);
+        conditionally(node.body);
+    }
+
+    @Override
+    public void visitLabelled(JCTree.JCLabeledStatement node) {
+        // A break out of the labeled statement skips the rest of it.
+        conditionally(node.body);
+    }
+
+    @Override
+    public void visitSwitch(JCTree.JCSwitch node) {
+        scan(node.selector);
+        // Fall-through enters a case from the previous one, so forget what
+        // any case assigns before looking at them.
+        for (JCTree.JCCase c : node.cases)
+            killAssignedIn(c);
+        for (JCTree.JCCase c : node.cases)
+            conditionally(c);
+    }
+
+    @Override
+    public void visitTry(JCTree.JCTry node) {
+        // An exception can leave the block at any point.
+        conditionally(node.body);
+        for (JCTree.JCCatch c : node.catchers)
+            conditionally(c.body);
+        conditionally(node.finalizer);
+    }
+
+    // Nested classes are analyzed with their own methods.
+
+    @Override
+    public void visitClassDef(JCTree.JCClassDecl node) {
+    }
+
+    @Override
+    public void visitNewClass(JCTree.JCNewClass node) {
+        scan(node.encl);
+        scan(node.args);
+    }
+}
@@ -7,10 +7,16 @@ import javax.annotation.processing.ProcessingEnvironment;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.util.List;
 import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.code.TypeTags;
 import com.sun.tools.javac.code.Flags;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.source.tree.Tree.Kind;
 
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.HashMap;
 
 
 // Tightly coupled with the SimulationTranslator, this pass replaces all local
@@ -25,6 +31,7 @@ public class ReferencingTranslator<Checker extends InstrumentingChecker> extends
     }
 
     protected static String REFERENCE_CLASS = checkers.runtime.rt.Reference.class.getName();
+    protected static final String REFERENCE_PACKAGE = checkers.runtime.rt.Reference.class.getPackage().getName();
     protected static final String VALUE_FIELD = "value";
     protected static final String SYM_SUFFIX = "__REF__";
 
@@ -36,6 +43,127 @@ public class ReferencingTranslator<Checker extends InstrumentingChecker> extends
         HashSet<JCTree.JCStatement>();
     protected boolean skipIdents = false;
 
+    // Locals that the instrumentation never observes. These are left as
+    // plain JVM locals rather than being wrapped in a Reference.
+    protected Set<Symbol.VarSymbol> plainLocals = new
+        HashSet<Symbol.VarSymbol>();
+    private Set<Symbol.VarSymbol> decidedLocals = new
+        HashSet<Symbol.VarSymbol>();
+    private int elidedCount = 0;
+    private int referencedCount = 0;
+
+    // The number of locals (and parameters) left unwrapped so far.
+    public int elidedLocals() { return elidedCount; }
+    // The number of locals (and parameters) wrapped in references so far.
+    public int referencedLocals() { return referencedCount; }
+
+    // Whether loads from or stores to a local variable are observed by the
+    // instrumentation. Subclasses that hook local accesses through the
+    // __REF__ references should answer precisely; a local for which both
+    // answers are false (or which is never loaded or stored) is not wrapped.
+    protected boolean observesLocalLoads(Symbol.VarSymbol var) {
+        return true;
+    }
+    protected boolean observesLocalStores(Symbol.VarSymbol var) {
+        return true;
+    }
+
+    // Pre-pass over a method that counts the loads and stores of each local
+    // variable it declares, including accesses from nested classes. (A local
+    // captured by a nested class is necessarily final, so capture by itself
+    // never requires a reference; only the instrumentation can observe a
+    // reference escaping.)
+    private class LocalAccessScanner extends TreeScanner {
+        Map<Symbol.VarSymbol, Integer> loads =
+            new HashMap<Symbol.VarSymbol, Integer>();
+        Map<Symbol.VarSymbol, Integer> stores =
+            new HashMap<Symbol.VarSymbol, Integer>();
+        List<Symbol.VarSymbol> declared = List.nil();
+
+        private void count(Map<Symbol.VarSymbol, Integer> map, JCTree tree) {
+            if (!(tree instanceof JCTree.JCIdent))
+                return;
+            Symbol sym = ((JCTree.JCIdent)tree).sym;
+            if (!(sym instanceof Symbol.VarSymbol))
+                return;
+            Symbol.VarSymbol var = (Symbol.VarSymbol)sym;
+            Integer old = map.get(var);
+            map.put(var, old == null ? 1 : old + 1);
+        }
+
+        @Override
+        public void visitMethodDef(JCTree.JCMethodDecl tree) {
+            // Parameters are stored to on entry.
+            for (JCTree.JCVariableDecl param : tree.params) {
+                declared = declared.prepend(param.sym);
+                Integer old = stores.get(param.sym);
+                stores.put(param.sym, old == null ? 1 : old + 1);
+            }
+            super.visitMethodDef(tree);
+        }
+
+        @Override
+        public void visitVarDef(JCTree.JCVariableDecl tree) {
+            if (tree.sym != null && tree.sym.owner instanceof Symbol.MethodSymbol) {
+                declared = declared.prepend(tree.sym);
+                if (tree.init != null) {
+                    Integer old = stores.get(tree.sym);
+                    stores.put(tree.sym, old == null ? 1 : old + 1);
+                }
+            }
+            super.visitVarDef(tree);
+        }
+
+        @Override
+        public void visitIdent(JCTree.JCIdent tree) {
+            count(loads, tree);
+        }
+
+        @Override
+        public void visitAssign(JCTree.JCAssign tree) {
+            if (tree.lhs instanceof JCTree.JCIdent)
+                count(stores, tree.lhs);
+            else
+                scan(tree.lhs);
+            scan(tree.rhs);
+        }
+
+        @Override
+        public void visitAssignop(JCTree.JCAssignOp tree) {
+            count(stores, tree.lhs);
+            super.visitAssignop(tree);
+        }
+
+        @Override
+        public void visitUnary(JCTree.JCUnary tree) {
+            Kind kind = tree.getKind();
+            if (kind == Kind.PREFIX_INCREMENT || kind == Kind.PREFIX_DECREMENT ||
+                    kind == Kind.POSTFIX_INCREMENT ||
+                    kind == Kind.POSTFIX_DECREMENT)
+                count(stores, tree.arg);
+            super.visitUnary(tree);
+        }
+    }
+
+    // Decide which locals of a method need to be wrapped in references.
+    private void decideLocals(JCTree.JCMethodDecl tree) {
+        LocalAccessScanner scanner = new LocalAccessScanner();
+        scanner.scan(tree);
+        for (Symbol.VarSymbol var : scanner.declared) {
+            if (!decidedLocals.add(var))
+                continue; // Already decided for an enclosing method.
+            boolean observed =
+                (scanner.loads.containsKey(var) && observesLocalLoads(var)) ||
+                (scanner.stores.containsKey(var) && observesLocalStores(var));
+            if (observed) {
+                referencedCount++;
+            } else {
+                plainLocals.add(var);
+                elidedCount++;
+            }
+        }
+    }
+
     // Generate a replacement variable definition for a given variable
     // declaration. If 'inited' is true, then the reference is given an
     // in initial value (i.e., it it set to the initial value of the
@@ -50,16 +178,25 @@ public class ReferencingTranslator<Checker extends InstrumentingChecker> extends
         if (!(tree.sym.owner instanceof Symbol.MethodSymbol))
             return null;
 
-        // Instead of declaring "T x", we declare "Reference<T> x__REF__".
-        JCTree.JCExpression boxedOldType = tree.vartype;
+        // Leave unobserved locals alone.
+        if (plainLocals.contains(tree.sym))
+            return null;
+
+        // Instead of declaring "T x", we declare "Reference<T> x__REF__". For
+        // primitive types, we use a specialized reference class instead so
+        // that the value is never boxed: "int x" becomes
+        // "IntReference x__REF__".
+        JCTree.JCExpression oldType = tree.vartype;
+        JCTree.JCExpression newType;
         boolean primitive = false;
-        if (tree.sym.type.isPrimitive()) {
-            boxedOldType = dotsExp(jctypes.boxedClass(tree.type).toString());
+        String primRefClass = primitiveReferenceClass(tree.sym.type);
+        if (primRefClass != null) {
+            newType = dotsExp(primRefClass);
             primitive = true;
+        } else {
+            newType = maker.TypeApply(dotsExp(REFERENCE_CLASS),
+                                      List.of(oldType));
         }
-        JCTree.JCExpression newType =
-            maker.TypeApply(dotsExp(REFERENCE_CLASS),
-                            List.of(boxedOldType));
 
         // Make a new variable declaration.
         JCTree.JCVariableDecl decl = maker.VarDef(
@@ -69,25 +206,63 @@ public class ReferencingTranslator<Checker extends InstrumentingChecker> extends
             tree.init
         );
 
-        // Initialize with the value of the old variable.
+        // Initialize with the value of the old variable. Uninitialized
+        // primitive references are left at their default value.
         JCTree.JCExpression init;
         if (tree.init != null || inited)
             init = maker.Ident(tree.name);
+        else if (primitive)
+            init = null;
         else
             init = nullExp();
-        JCTree.JCExpression newInit = createNewInitializer(tree, boxedOldType, newType, init, primitive);
+        JCTree.JCExpression newInit = createNewInitializer(tree, oldType, newType, init, primitive);
         decl.init = newInit;
 
         //attribute(decl, tree); // Ensure that we enter the new variable.
         return decl;
     }
 
-    public JCTree.JCExpression createNewInitializer(JCTree.JCVariableDecl tree, JCTree.JCExpression boxedOldType,
+    // Get the name of the specialized reference class for a primitive type,
+    // or null if the type is not primitive.
+    protected static String primitiveReferenceClass(Type type) {
+        String prefix;
+        switch (type.tag) {
+        case TypeTags.BYTE:    prefix = "Byte"; break;
+        case TypeTags.CHAR:    prefix = "Char"; break;
+        case TypeTags.SHORT:   prefix = "Short"; break;
+        case TypeTags.INT:     prefix = "Int"; break;
+        case TypeTags.LONG:    prefix = "Long"; break;
+        case TypeTags.FLOAT:   prefix = "Float"; break;
+        case TypeTags.DOUBLE:  prefix = "Double"; break;
+        case TypeTags.BOOLEAN: prefix = "Boolean"; break;
+        default:               return null;
+        }
+        return REFERENCE_PACKAGE + "." + prefix + "Reference";
+    }
+
+    public JCTree.JCExpression createNewInitializer(JCTree.JCVariableDecl tree, JCTree.JCExpression oldType,
             JCTree.JCExpression newType, JCTree.JCExpression init, boolean primitive) {
 
+        if (primitive) {
+            // new IntReference(init), or new IntReference() when there is
+            // no initial value.
+            List<JCTree.JCExpression> args;
+            if (init == null)
+                args = List.<JCTree.JCExpression>nil();
+            else
+                args = List.<JCTree.JCExpression>of(init);
+            return maker.NewClass(
+                null,
+                List.<JCTree.JCExpression>nil(),
+                newType,
+                args,
+                null
+            );
+        }
+
         JCTree.JCExpression newInit = maker.NewClass(
                 null,
-                List.of(boxedOldType),
+                List.of(oldType),
                 newType,
                 List.<JCTree.JCExpression>of(
                     init,
@@ -229,6 +404,10 @@ public class ReferencingTranslator<Checker extends InstrumentingChecker> extends
             if (!(tree.sym.owner instanceof Symbol.MethodSymbol))
                 return;
 
+            // Skip locals that were not given a reference.
+            if (plainLocals.contains(tree.sym))
+                return;
+
             // Avoid instrumenting "super" and "this" keywords.
             if (tree.sym.toString().equals("this") ||
                         tree.sym.toString().equals("super"))
@@ -264,15 +443,20 @@ public class ReferencingTranslator<Checker extends InstrumentingChecker> extends
         }
 
         // Remove "final" modifiers -- they were causing attribution problems
-        // and are irrelevant for __REF__ replacements anyway.
-        tree.mods.flags &= ~Flags.FINAL;
-        tree.sym.flags_field &= ~Flags.FINAL;
+        // and are irrelevant for __REF__ replacements anyway. Plain locals
+        // keep theirs, since they may be captured by nested classes.
+        if (!plainLocals.contains(tree.sym)) {
+            tree.mods.flags &= ~Flags.FINAL;
+            tree.sym.flags_field &= ~Flags.FINAL;
+        }
 
         super.visitVarDef(tree);
     }
 
     @Override
     public void visitMethodDef(JCTree.JCMethodDecl tree) {
+        decideLocals(tree);
+
         // Skip further instrumentation on abstract methods.
         if (tree.body == null || tree.body.stats == null ||
                     tree.body.stats.head == null) {
@@ -311,6 +495,8 @@ public class ReferencingTranslator<Checker extends InstrumentingChecker> extends
             // Construct replacement declaration, which we'll insert at the top
             // of the method body.
             JCTree.JCVariableDecl decl = replVarDef(param, true);
+            if (decl == null)
+                continue;
 
             // Mark this on a blacklist against later instrumentation.
             replDecls.add(decl);
@@ -0,0 +1,55 @@
+package checkers.runtime.instrument;
+
+// Wall-clock time and call counts for the expensive phases of translation,
+// collected when the checker is run with -Ajillprof. Phases nest (attribute
+// calls getAttrEnv, which removes anonymous classes, ...), so each phase's
+// time includes that of the phases it calls.
+public class TranslationProfile {
+    public static final int TRANSLATE = 0;
+    public static final int ATTR_ENV = 1;
+    public static final int ATTRIBUTE = 2;
+    public static final int ANON_CLASSES = 3;
+    public static final int ENTER_MEMBER = 4;
+    public static final int TYPE_FOR_EXPR = 5;
+    public static final int STATIC_INIT = 6;
+
+    private static final String[] PHASE_NAMES = {
+        "translate", "getAttrEnv", "attribute", "anonClassRemoval",
+        "enterClassMember", "typeForExpr", "staticInitializer"
+    };
+
+    private final long[] nanos = new long[PHASE_NAMES.length];
+    private final long[] counts = new long[PHASE_NAMES.length];
+    private int units = 0;
+
+    public void record(int phase, long start) {
+        nanos[phase] += System.nanoTime() - start;
+        counts[phase]++;
+    }
+
+    public long nanos(int phase) { return nanos[phase]; }
+    public long count(int phase) { return counts[phase]; }
+
+    // Fold another profile (typically one compilation unit's) into this one.
+    public synchronized void add(TranslationProfile other) {
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i] += other.nanos[i];
+            counts[i] += other.counts[i];
+        }
+        units += Math.max(other.units, 1);
+    }
+
+    public synchronized String report(String title) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(title);
+        if (units > 0)
+            sb.append(" (").append(units).append(" units)");
+        sb.append(":\n");
+        for (int i = 0; i < nanos.length; i++) {
+            sb.append(String.format("  %-18s %10.2f ms %10d calls%n",
+                                    PHASE_NAMES[i], nanos[i] / 1e6,
+                                    counts[i]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,82 @@
+package checkers.runtime.rt;
+
+/**
+ * An AccessListener that ignores everything.
+ */
+public class AccessAdapter implements AccessListener {
+    @Override
+    public void load(int site, int value) {
+    }
+
+    @Override
+    public void load(int site, long value) {
+    }
+
+    @Override
+    public void load(int site, double value) {
+    }
+
+    @Override
+    public void load(int site, float value) {
+    }
+
+    @Override
+    public void load(int site, boolean value) {
+    }
+
+    @Override
+    public void load(int site, char value) {
+    }
+
+    @Override
+    public void load(int site, byte value) {
+    }
+
+    @Override
+    public void load(int site, short value) {
+    }
+
+    @Override
+    public void load(int site, Object value) {
+    }
+
+    @Override
+    public void store(int site, int value) {
+    }
+
+    @Override
+    public void store(int site, long value) {
+    }
+
+    @Override
+    public void store(int site, double value) {
+    }
+
+    @Override
+    public void store(int site, float value) {
+    }
+
+    @Override
+    public void store(int site, boolean value) {
+    }
+
+    @Override
+    public void store(int site, char value) {
+    }
+
+    @Override
+    public void store(int site, byte value) {
+    }
+
+    @Override
+    public void store(int site, short value) {
+    }
+
+    @Override
+    public void store(int site, Object value) {
+    }
+
+    @Override
+    public void repeated(int site, long count) {
+    }
+}
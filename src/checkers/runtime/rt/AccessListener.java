@@ -0,0 +1,39 @@
+package checkers.runtime.rt;
+
+/**
+ * Receives the memory accesses reported through Accesses. There is one
+ * overload per primitive kind so that primitive values are never boxed;
+ * reference values arrive as Object. Extend AccessAdapter to implement only
+ * the overloads you need.
+ *
+ * Listeners are called on the accessing thread, synchronously.
+ */
+public interface AccessListener {
+    void load(int site, int value);
+    void load(int site, long value);
+    void load(int site, double value);
+    void load(int site, float value);
+    void load(int site, boolean value);
+    void load(int site, char value);
+    void load(int site, byte value);
+    void load(int site, short value);
+    void load(int site, Object value);
+
+    void store(int site, int value);
+    void store(int site, long value);
+    void store(int site, double value);
+    void store(int site, float value);
+    void store(int site, boolean value);
+    void store(int site, char value);
+    void store(int site, byte value);
+    void store(int site, short value);
+    void store(int site, Object value);
+
+    /**
+     * The access at site happened count more times, each with the value
+     * last reported for it on this thread. Loads of locals a loop never
+     * assigns are reported this way, once per loop, when instrumentation is
+     * hoisted out of loops (-Ajillhoist).
+     */
+    void repeated(int site, long count);
+}
@@ -0,0 +1,151 @@
+package checkers.runtime.rt;
+
+/**
+ * The runtime entry points for instrumented loads and stores of locals,
+ * fields and array elements. Instrumentation wraps the loaded value (or the
+ * value about to be stored) in a call such as Accesses.load(value, site);
+ * the call returns the value unchanged after reporting it to the installed
+ * AccessListener, if any. Every primitive kind has its own overload, chosen
+ * by ordinary overload resolution when the instrumented code is attributed,
+ * so no value is boxed on the way.
+ */
+public final class Accesses {
+    /** The listener to report to, or null to report nothing. */
+    public static volatile AccessListener listener = null;
+
+    private Accesses() {
+    }
+
+    public static int load(int value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.load(site, value);
+        return value;
+    }
+
+    public static long load(long value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.load(site, value);
+        return value;
+    }
+
+    public static double load(double value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.load(site, value);
+        return value;
+    }
+
+    public static float load(float value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.load(site, value);
+        return value;
+    }
+
+    public static boolean load(boolean value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.load(site, value);
+        return value;
+    }
+
+    public static char load(char value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.load(site, value);
+        return value;
+    }
+
+    public static byte load(byte value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.load(site, value);
+        return value;
+    }
+
+    public static short load(short value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.load(site, value);
+        return value;
+    }
+
+    public static <T> T load(T value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.load(site, (Object)value);
+        return value;
+    }
+
+    public static int store(int value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.store(site, value);
+        return value;
+    }
+
+    public static long store(long value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.store(site, value);
+        return value;
+    }
+
+    public static double store(double value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.store(site, value);
+        return value;
+    }
+
+    public static float store(float value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.store(site, value);
+        return value;
+    }
+
+    public static boolean store(boolean value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.store(site, value);
+        return value;
+    }
+
+    public static char store(char value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.store(site, value);
+        return value;
+    }
+
+    public static byte store(byte value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.store(site, value);
+        return value;
+    }
+
+    public static short store(short value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.store(site, value);
+        return value;
+    }
+
+    public static <T> T store(T value, int site) {
+        AccessListener l = listener;
+        if (l != null)
+            l.store(site, (Object)value);
+        return value;
+    }
+
+    /** Report count more accesses at site, as AccessListener.repeated. */
+    public static void repeated(int site, long count) {
+        AccessListener l = listener;
+        if (l != null)
+            l.repeated(site, count);
+    }
+}
@@ -0,0 +1,322 @@
+package checkers.runtime.rt;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A runtime that aggregates the allocations it is told about, as a cheap
+ * alternative to a heap dump when chasing allocation pressure. It counts
+ * objects and bytes per allocation site (the SiteTable ID the creation
+ * hooks pass, split further by allocated class), per allocated class and
+ * per creator class, and keeps a log2 histogram of array lengths per array
+ * class.
+ *
+ * Object sizes are the preciseSize + approxSize passed to beforeCreation.
+ * Array sizes are estimated from the sizes passed to newArray as
+ * baseSize + length * elementSize, rounded up to ALIGNMENT, so they follow
+ * the same compile-time memory model (-Ajilloops) as the object sizes;
+ * only the outermost dimension of a multi-dimensional array is counted.
+ *
+ * Threads record into one of a fixed set of accumulators, picked by thread
+ * ID, so there is no per-thread state to register or clean up and millions
+ * of short-lived (e.g. virtual) threads cost nothing extra. There are a few
+ * stripes per processor, so contention is rare; the stripe locks are
+ * ReentrantLocks, which a blocked virtual thread does not hold its carrier
+ * for. snapshot() merges the stripes on demand. The size, site and creator
+ * of a pending creation are kept on the CreationStack.
+ */
+public class AllocationProfiler extends CreationStackRuntime {
+    public static final int ALIGNMENT = 8;
+    /** Buckets of the array length histograms: 0, 1, 2-3, 4-7, ... */
+    public static final int LENGTH_BUCKETS = 33;
+
+    /** Allocations and bytes for one key. */
+    public static final class Counter {
+        public long count;
+        public long bytes;
+
+        void add(long count, long bytes) {
+            this.count += count;
+            this.bytes += bytes;
+        }
+    }
+
+    private static final class Accumulator {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<Class<?>, Counter> byClass = new HashMap<Class<?>, Counter>();
+        final Map<Class<?>, Counter> byCreator = new HashMap<Class<?>, Counter>();
+        final Map<Class<?>, long[]> arrayLengths = new HashMap<Class<?>, long[]>();
+        // Indexed by site ID: the allocations at each site, by class. Site
+        // IDs are dense, so this is a flat list rather than a map.
+        final ArrayList<Map<Class<?>, Counter>> bySite =
+            new ArrayList<Map<Class<?>, Counter>>();
+
+        private Map<Class<?>, Counter> site(int site) {
+            while (bySite.size() <= site)
+                bySite.add(null);
+            Map<Class<?>, Counter> classes = bySite.get(site);
+            if (classes == null) {
+                classes = new HashMap<Class<?>, Counter>(2);
+                bySite.set(site, classes);
+            }
+            return classes;
+        }
+
+        void object(int site, Class<?> cls, Class<?> creator, int size) {
+            lock.lock();
+            try {
+                if (site >= 0)
+                    counter(site(site), cls).add(1, size);
+                counter(byClass, cls).add(1, size);
+                counter(byCreator, creator).add(1, size);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void array(int site, Class<?> cls, int length, long size) {
+            lock.lock();
+            try {
+                if (site >= 0)
+                    counter(site(site), cls).add(1, size);
+                counter(byClass, cls).add(1, size);
+                long[] hist = arrayLengths.get(cls);
+                if (hist == null) {
+                    hist = new long[LENGTH_BUCKETS];
+                    arrayLengths.put(cls, hist);
+                }
+                hist[bucket(length)]++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void mergeInto(Snapshot s) {
+            lock.lock();
+            try {
+                merge(byClass, s.byClass);
+                merge(byCreator, s.byCreator);
+                mergeHistograms(arrayLengths, s.arrayLengths);
+                for (int site = 0; site < bySite.size(); site++) {
+                    Map<Class<?>, Counter> classes = bySite.get(site);
+                    if (classes == null)
+                        continue;
+                    Map<Class<?>, Counter> to = s.bySite.get(site);
+                    if (to == null) {
+                        to = new HashMap<Class<?>, Counter>(2);
+                        s.bySite.put(site, to);
+                    }
+                    merge(classes, to);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Stands in for the creator class of allocations in static code. */
+    public static final class Static {
+        private Static() {
+        }
+    }
+
+    private static Counter counter(Map<Class<?>, Counter> map, Class<?> key) {
+        Counter c = map.get(key);
+        if (c == null) {
+            c = new Counter();
+            map.put(key, c);
+        }
+        return c;
+    }
+
+    private static void merge(Map<Class<?>, Counter> from,
+                              Map<Class<?>, Counter> to) {
+        for (Map.Entry<Class<?>, Counter> e : from.entrySet())
+            counter(to, e.getKey()).add(e.getValue().count, e.getValue().bytes);
+    }
+
+    private static void mergeHistograms(Map<Class<?>, long[]> from,
+                                        Map<Class<?>, long[]> to) {
+        for (Map.Entry<Class<?>, long[]> e : from.entrySet()) {
+            long[] hist = to.get(e.getKey());
+            if (hist == null) {
+                hist = new long[LENGTH_BUCKETS];
+                to.put(e.getKey(), hist);
+            }
+            for (int i = 0; i < LENGTH_BUCKETS; i++)
+                hist[i] += e.getValue()[i];
+        }
+    }
+
+    /** The histogram bucket of an array length. */
+    public static int bucket(int length) {
+        return 32 - Integer.numberOfLeadingZeros(length);
+    }
+
+    private final Accumulator[] stripes;
+
+    public AllocationProfiler() {
+        int n = Integer.highestOneBit(
+            4 * java.lang.Runtime.getRuntime().availableProcessors() - 1) << 1;
+        stripes = new Accumulator[n];
+        for (int i = 0; i < n; i++)
+            stripes[i] = new Accumulator();
+    }
+
+    private Accumulator stripe() {
+        long id = Thread.currentThread().getId();
+        return stripes[(int)(id ^ (id >>> 16)) & (stripes.length - 1)];
+    }
+
+    @Override
+    public <T> T wrappedNew(int before, T created, Object creator) {
+        CreationStack stack = stack();
+        if (stack.depth() > before) {
+            stripe().object(stack.siteAt(before), created.getClass(),
+                            creator == null ? Static.class : creator.getClass(),
+                            stack.sizeAt(before));
+        }
+        return super.wrappedNew(before, created, creator);
+    }
+
+    @Override
+    public <T> T newArray(T created, int dims, boolean approx,
+                          int preciseElSize, int approxElSize,
+                          int baseSize, int site) {
+        int length = Array.getLength(created);
+        int elSize = approx ? approxElSize : preciseElSize;
+        long size = baseSize + (long)length * elSize;
+        size = (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        stripe().array(site, created.getClass(), length, size);
+        return super.newArray(created, dims, approx, preciseElSize,
+                              approxElSize, baseSize, site);
+    }
+
+    /** The allocations of one class at one site. */
+    public static final class SiteCounter {
+        public final int site;
+        public final Class<?> cls;
+        public final Counter counter;
+
+        SiteCounter(int site, Class<?> cls, Counter counter) {
+            this.site = site;
+            this.cls = cls;
+            this.counter = counter;
+        }
+    }
+
+    /** Merged totals at the time of a snapshot() call. */
+    public static final class Snapshot {
+        public final Map<Class<?>, Counter> byClass =
+            new HashMap<Class<?>, Counter>();
+        public final Map<Class<?>, Counter> byCreator =
+            new HashMap<Class<?>, Counter>();
+        /** Array length histograms, indexed by bucket(). */
+        public final Map<Class<?>, long[]> arrayLengths =
+            new HashMap<Class<?>, long[]>();
+        /** Allocations by site ID, then by allocated class. */
+        public final Map<Integer, Map<Class<?>, Counter>> bySite =
+            new HashMap<Integer, Map<Class<?>, Counter>>();
+
+        /** The topN (site, class) pairs, by bytes. */
+        public List<SiteCounter> topSites(int topN) {
+            List<SiteCounter> entries = new ArrayList<SiteCounter>();
+            for (Map.Entry<Integer, Map<Class<?>, Counter>> site :
+                     bySite.entrySet()) {
+                for (Map.Entry<Class<?>, Counter> e : site.getValue().entrySet())
+                    entries.add(new SiteCounter(site.getKey(), e.getKey(),
+                                                e.getValue()));
+            }
+            Collections.sort(entries, new Comparator<SiteCounter>() {
+                @Override
+                public int compare(SiteCounter a, SiteCounter b) {
+                    return Long.compare(b.counter.bytes, a.counter.bytes);
+                }
+            });
+            return entries.subList(0, Math.min(topN, entries.size()));
+        }
+
+        /** The topN entries of a map, by bytes. */
+        public static List<Map.Entry<Class<?>, Counter>> top(
+                Map<Class<?>, Counter> map, int topN) {
+            List<Map.Entry<Class<?>, Counter>> entries =
+                new ArrayList<Map.Entry<Class<?>, Counter>>(map.entrySet());
+            Collections.sort(entries,
+                new Comparator<Map.Entry<Class<?>, Counter>>() {
+                    @Override
+                    public int compare(Map.Entry<Class<?>, Counter> a,
+                                       Map.Entry<Class<?>, Counter> b) {
+                        return Long.compare(b.getValue().bytes,
+                                            a.getValue().bytes);
+                    }
+                });
+            return entries.subList(0, Math.min(topN, entries.size()));
+        }
+    }
+
+    public Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        for (Accumulator acc : stripes)
+            acc.mergeInto(s);
+        return s;
+    }
+
+    public String report(int topN) {
+        return report(topN, null);
+    }
+
+    /**
+     * A human-readable report of the topN allocation sites, allocated
+     * classes and creator classes by bytes, and the length histograms of
+     * the topN array classes. Sites are described from the given table, if
+     * any.
+     */
+    public String report(int topN, SiteTable table) {
+        Snapshot s = snapshot();
+        StringBuilder sb = new StringBuilder();
+        sb.append("allocation sites:\n");
+        for (SiteCounter c : s.topSites(topN)) {
+            SiteTable.Site site = table == null ? null : table.get(c.site);
+            sb.append(String.format("  %-8d %-41s %12d objects %14d bytes%n",
+                                    c.site, c.cls.getName(), c.counter.count,
+                                    c.counter.bytes));
+            if (site != null)
+                sb.append("           ").append(site).append('\n');
+        }
+        sb.append("allocated classes:\n");
+        appendTop(sb, Snapshot.top(s.byClass, topN));
+        sb.append("creator classes:\n");
+        appendTop(sb, Snapshot.top(s.byCreator, topN));
+        sb.append("array lengths:\n");
+        for (Map.Entry<Class<?>, Counter> e : Snapshot.top(s.byClass, topN)) {
+            long[] hist = s.arrayLengths.get(e.getKey());
+            if (hist == null)
+                continue;
+            sb.append("  ").append(e.getKey().getName()).append('\n');
+            for (int i = 0; i < LENGTH_BUCKETS; i++) {
+                if (hist[i] == 0)
+                    continue;
+                long lo = i == 0 ? 0 : 1L << (i - 1);
+                long hi = i == 0 ? 0 : (1L << i) - 1;
+                sb.append(String.format("    %10d-%-10d %12d%n", lo, hi,
+                                        hist[i]));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendTop(StringBuilder sb,
+                                  List<Map.Entry<Class<?>, Counter>> entries) {
+        for (Map.Entry<Class<?>, Counter> e : entries) {
+            sb.append(String.format("  %-50s %12d objects %14d bytes%n",
+                                    e.getKey().getName(),
+                                    e.getValue().count, e.getValue().bytes));
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package checkers.runtime.rt;
+
+// A Reference specialized to boolean locals, so reads and writes of the
+// value do not box.
+public class BooleanReference {
+    public boolean value;
+    public BooleanReference() {
+    }
+    public BooleanReference(boolean value) {
+        this.value = value;
+    }
+}
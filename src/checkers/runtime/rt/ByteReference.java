@@ -0,0 +1,12 @@
+package checkers.runtime.rt;
+
+// A Reference specialized to byte locals, so reads and writes of the
+// value do not box.
+public class ByteReference {
+    public byte value;
+    public ByteReference() {
+    }
+    public ByteReference(byte value) {
+        this.value = value;
+    }
+}
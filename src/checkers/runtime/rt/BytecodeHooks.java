@@ -0,0 +1,20 @@
+package checkers.runtime.rt;
+
+/**
+ * Names the runtime hooks that the load-time agent (checkers.runtime.agent)
+ * inserts into bytecode. This is the bytecode counterpart of an
+ * Instrumentor: it has no javac dependencies, so it can be loaded into the
+ * instrumented JVM. Each method returns the fully-qualified name of a
+ * public static method, such as "pkg.Runtime.didCast", or null to leave
+ * that kind of site alone. The hooks take the same arguments as the calls a
+ * site-aware Instrumentor emits:
+ *
+ *   cast:       Object hook(Object value, int site)
+ *   instanceof: boolean hook(boolean result, int site)
+ *
+ * Implementations need a public no-argument constructor.
+ */
+public interface BytecodeHooks {
+    String castHook();
+    String instanceOfHook();
+}
@@ -0,0 +1,12 @@
+package checkers.runtime.rt;
+
+// A Reference specialized to char locals, so reads and writes of the
+// value do not box.
+public class CharReference {
+    public char value;
+    public CharReference() {
+    }
+    public CharReference(char value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,220 @@
+package checkers.runtime.rt;
+
+import java.lang.ref.PhantomReference;
+
+/**
+ * A reference implementation of the creation-tracking part of the Runtime
+ * interface. The stack of (creator, approx) pairs described by Runtime is
+ * kept per thread in a thread-confined, array-backed structure, so pushing
+ * and popping take no locks and (once the arrays have grown to the maximum
+ * nesting depth) allocate nothing. The stack lives in a ThreadLocal rather
+ * than a map keyed by thread ID, so it is created on a thread's first
+ * creation and collected with the thread: millions of short-lived virtual
+ * threads neither leak stacks nor contend on a shared map, and nothing here
+ * blocks, so no carrier thread is pinned.
+ *
+ * Subclasses observe creations by overriding created().
+ */
+public class CreationStackRuntime implements Runtime {
+    // Most threads never nest creations deeply; keep their stacks small.
+    private static final int INITIAL_DEPTH = 4;
+
+    /**
+     * The per-thread stack of pending creations. Only ever touched by its
+     * owning thread.
+     */
+    protected static final class CreationStack {
+        private Object[] creators = new Object[INITIAL_DEPTH];
+        private boolean[] approx = new boolean[INITIAL_DEPTH];
+        private int[] sizes = new int[INITIAL_DEPTH];
+        private int[] sites = new int[INITIAL_DEPTH];
+        // The object that entered its constructor for each creation, once
+        // one has.
+        private Object[] entered = new Object[INITIAL_DEPTH];
+        private int size = 0;
+
+        void push(Object creator, boolean isApprox, int objectSize,
+                  int site) {
+            if (size == creators.length) {
+                int newLength = creators.length * 2;
+                Object[] newCreators = new Object[newLength];
+                boolean[] newApprox = new boolean[newLength];
+                int[] newSizes = new int[newLength];
+                int[] newSites = new int[newLength];
+                Object[] newEntered = new Object[newLength];
+                System.arraycopy(creators, 0, newCreators, 0, size);
+                System.arraycopy(approx, 0, newApprox, 0, size);
+                System.arraycopy(sizes, 0, newSizes, 0, size);
+                System.arraycopy(sites, 0, newSites, 0, size);
+                System.arraycopy(entered, 0, newEntered, 0, size);
+                creators = newCreators;
+                approx = newApprox;
+                sizes = newSizes;
+                sites = newSites;
+                entered = newEntered;
+            }
+            creators[size] = creator;
+            approx[size] = isApprox;
+            sizes[size] = objectSize;
+            sites[size] = site;
+            size++;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        Object topCreator() {
+            return creators[size - 1];
+        }
+
+        boolean topApprox() {
+            return approx[size - 1];
+        }
+
+        /**
+         * The size (preciseSize + approxSize) announced for the innermost
+         * pending creation.
+         */
+        public int topSize() {
+            return sizes[size - 1];
+        }
+
+        /** The creation site of the innermost pending creation. */
+        public int topSite() {
+            return sites[size - 1];
+        }
+
+        /**
+         * The creation site of the pending creation at the given depth.
+         */
+        public int siteAt(int depth) {
+            return sites[depth];
+        }
+
+        Object topEntered() {
+            return entered[size - 1];
+        }
+
+        void enter(Object created) {
+            entered[size - 1] = created;
+        }
+
+        /**
+         * The size announced for the pending creation at the given depth,
+         * counted from the bottom of the stack.
+         */
+        public int sizeAt(int depth) {
+            return sizes[depth];
+        }
+
+        void pop() {
+            size--;
+            // Don't keep the creator or the created object alive.
+            creators[size] = null;
+            entered[size] = null;
+        }
+
+        /**
+         * Pop entries until only the given number remain. Entries above
+         * that depth are stale when called from wrappedNew or enterCatch:
+         * their constructors (or the evaluation of their arguments) threw,
+         * so their own wrappedNew never ran.
+         */
+        void unwind(int depth) {
+            while (size > depth)
+                pop();
+        }
+
+        public int depth() {
+            return size;
+        }
+    }
+
+    private final ThreadLocal<CreationStack> stacks =
+        new ThreadLocal<CreationStack>() {
+            @Override
+            protected CreationStack initialValue() {
+                return new CreationStack();
+            }
+        };
+
+    /**
+     * Get the creation stack for the current thread.
+     */
+    protected CreationStack stack() {
+        return stacks.get();
+    }
+
+    /**
+     * Called from enterConstructor for every object whose creation was
+     * announced by beforeCreation: once per object, although each
+     * instrumented constructor in its super() chain enters it.
+     *
+     * @param created The newly created object.
+     * @param approx Whether the object should be approximate.
+     */
+    protected void created(Object created, boolean approx) {
+    }
+
+    @Override
+    public int beforeCreation(Object creator, boolean approx,
+                              int preciseSize, int approxSize, int site) {
+        CreationStack stack = stack();
+        int depth = stack.depth();
+        stack.push(creator, approx, preciseSize + approxSize, site);
+        return depth;
+    }
+
+    @Override
+    public boolean enterConstructor(Object created) {
+        CreationStack stack = stack();
+        if (stack.isEmpty()) {
+            // Created by uninstrumented code; nothing to go on.
+            return false;
+        }
+        boolean approx = stack.topApprox();
+        if (stack.topEntered() != created) {
+            stack.enter(created);
+            created(created, approx);
+        }
+        return approx;
+    }
+
+    @Override
+    public boolean afterCreation(Object creator, Object created) {
+        CreationStack stack = stack();
+        if (!stack.isEmpty() && stack.topCreator() == creator) {
+            stack.pop();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public <T> T wrappedNew(int before, T created, Object creator) {
+        stack().unwind(before);
+        return created;
+    }
+
+    @Override
+    public int enterTry() {
+        return stack().depth();
+    }
+
+    @Override
+    public void enterCatch(int depth) {
+        stack().unwind(depth);
+    }
+
+    @Override
+    public <T> T newArray(T created, int dims, boolean approx,
+                          int preciseElSize, int approxElSize,
+                          int baseSize, int site) {
+        return created;
+    }
+
+    @Override
+    public void endLifetime(PhantomReference<Object> ref) {
+    }
+}
@@ -0,0 +1,12 @@
+package checkers.runtime.rt;
+
+// A Reference specialized to double locals, so reads and writes of the
+// value do not box.
+public class DoubleReference {
+    public double value;
+    public DoubleReference() {
+    }
+    public DoubleReference(double value) {
+        this.value = value;
+    }
+}
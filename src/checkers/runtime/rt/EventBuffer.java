@@ -0,0 +1,140 @@
+package checkers.runtime.rt;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single-producer, single-consumer ring of fixed-size primitive event
+ * records. The producer is the thread that owns the buffer; the consumer is
+ * the EventPipeline's drain thread. Recording an event is a capacity check
+ * and a few array stores followed by an ordered (lazySet) publish; when the
+ * ring is full the event is dropped and counted rather than blocking the
+ * application thread.
+ *
+ * The ring starts at INITIAL_CAPACITY events and doubles whenever it fills
+ * up, until it reaches the capacity it was created with, so threads that
+ * record a handful of events do not pay for a full-size ring. To grow, the
+ * producer copies the unconsumed records into a larger array at the same
+ * indices and publishes it before any record written into it; the consumer
+ * reads the array after the tail, so it always finds the records it is
+ * about to drain in whichever array it sees.
+ */
+public final class EventBuffer {
+    /** The number of long slots per event: kind, site, value. */
+    public static final int RECORD_SIZE = 3;
+    /** The number of events a new ring holds. */
+    public static final int INITIAL_CAPACITY = 64;
+
+    // The current ring; replaced by the producer only, when it grows.
+    private volatile long[] slots;
+    private final int maxMask;
+    final WeakReference<Thread> owner;
+
+    // Index of the next record to produce; written by the producer only.
+    private final AtomicLong tail = new AtomicLong();
+    // Index of the next record to consume; written by the consumer only.
+    private final AtomicLong head = new AtomicLong();
+
+    // Producer-local copies that avoid volatile reads on the fast path.
+    private long[] producerSlots;
+    private int producerMask;
+    private long producerTail = 0;
+    private long producerHead = 0;
+    private volatile long dropped = 0;
+
+    /**
+     * @param capacity The number of events the ring may grow to hold;
+     * rounded up to a power of two.
+     */
+    EventBuffer(int capacity, Thread owner) {
+        int max = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        int size = Math.min(max, INITIAL_CAPACITY);
+        producerSlots = new long[size * RECORD_SIZE];
+        producerMask = size - 1;
+        slots = producerSlots;
+        maxMask = max - 1;
+        this.owner = new WeakReference<Thread>(owner);
+    }
+
+    /**
+     * Record an event. Must only be called from the owning thread.
+     *
+     * @return False if the ring was full and the event was dropped.
+     */
+    boolean offer(int kind, int site, long value) {
+        long t = producerTail;
+        if (t - producerHead > producerMask) {
+            producerHead = head.get();
+            if (t - producerHead > producerMask && !grow()) {
+                dropped++; // Single writer, so no lost updates.
+                return false;
+            }
+        }
+        long[] ring = producerSlots;
+        int i = (int)(t & producerMask) * RECORD_SIZE;
+        ring[i] = kind;
+        ring[i + 1] = site;
+        ring[i + 2] = value;
+        producerTail = t + 1;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Double the ring, keeping every record from producerHead on. Must only
+     * be called from the owning thread.
+     *
+     * @return False if the ring is already at its maximum capacity.
+     */
+    private boolean grow() {
+        if (producerMask == maxMask)
+            return false;
+        long[] old = producerSlots;
+        int oldMask = producerMask;
+        int newMask = (oldMask << 1) | 1;
+        long[] ring = new long[(newMask + 1) * RECORD_SIZE];
+        for (long r = producerHead; r < producerTail; r++) {
+            int from = (int)(r & oldMask) * RECORD_SIZE;
+            int to = (int)(r & newMask) * RECORD_SIZE;
+            System.arraycopy(old, from, ring, to, RECORD_SIZE);
+        }
+        producerSlots = ring;
+        producerMask = newMask;
+        slots = ring;
+        return true;
+    }
+
+    /**
+     * Hand every published event to the sink, in at most two contiguous
+     * batches. Must only be called from the consumer thread.
+     *
+     * @return The number of events drained.
+     */
+    int drain(EventSink sink) {
+        long h = head.get();
+        long t = tail.get();
+        if (h == t)
+            return 0;
+        // Read after the tail: this ring holds every record up to t.
+        long[] ring = slots;
+        int mask = ring.length / RECORD_SIZE - 1;
+        int count = (int)(t - h);
+        int start = (int)(h & mask);
+        int first = Math.min(count, mask + 1 - start);
+        sink.consume(ring, start * RECORD_SIZE, first);
+        if (first < count)
+            sink.consume(ring, 0, count - first);
+        head.lazySet(t);
+        return count;
+    }
+
+    /** The number of events dropped because the ring was full. */
+    public long dropped() {
+        return dropped;
+    }
+
+    boolean ownerAlive() {
+        Thread thread = owner.get();
+        return thread != null && thread.isAlive();
+    }
+}
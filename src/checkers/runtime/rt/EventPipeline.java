@@ -0,0 +1,134 @@
+package checkers.runtime.rt;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decouples instrumentation hooks from whatever consumes their events.
+ * Hooks call record() on the application thread, which only writes a
+ * fixed-size record into that thread's EventBuffer; a background daemon
+ * thread drains all buffers in batches into a pluggable EventSink.
+ */
+public class EventPipeline {
+    // Event kinds.
+    public static final int CAST = 1;
+    public static final int INSTANCEOF = 2;
+    public static final int NEW = 3;
+    public static final int NEW_ARRAY = 4;
+
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+    public static final long DEFAULT_INTERVAL_MILLIS = 10;
+
+    private final EventSink sink;
+    private final int capacity;
+    private final long intervalNanos;
+
+    private final CopyOnWriteArrayList<EventBuffer> buffers =
+        new CopyOnWriteArrayList<EventBuffer>();
+    private final ThreadLocal<EventBuffer> local =
+        new ThreadLocal<EventBuffer>() {
+            @Override
+            protected EventBuffer initialValue() {
+                EventBuffer buffer =
+                    new EventBuffer(capacity, Thread.currentThread());
+                buffers.add(buffer);
+                return buffer;
+            }
+        };
+
+    private Thread consumer = null;
+    private volatile boolean running = false;
+    // Drops from buffers whose threads have exited.
+    private volatile long retiredDrops = 0;
+
+    public EventPipeline(EventSink sink) {
+        this(sink, DEFAULT_CAPACITY, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param sink Where drained events go.
+     * @param capacity The most events a thread's ring grows to hold; rings
+     * start at EventBuffer.INITIAL_CAPACITY.
+     * @param intervalMillis How long the consumer sleeps when it finds no
+     * events.
+     */
+    public EventPipeline(EventSink sink, int capacity, long intervalMillis) {
+        this.sink = sink;
+        this.capacity = capacity;
+        this.intervalNanos = intervalMillis * 1000000L;
+    }
+
+    /**
+     * Record an event from the current thread. This is the hot path.
+     *
+     * @return False if the event was dropped because the buffer was full.
+     */
+    public boolean record(int kind, int site, long value) {
+        return local.get().offer(kind, site, value);
+    }
+
+    public synchronized void start() {
+        if (consumer != null)
+            return;
+        running = true;
+        consumer = new Thread("checkers-runtime-events") {
+            @Override
+            public void run() {
+                while (running) {
+                    if (drainAll() == 0)
+                        LockSupport.parkNanos(intervalNanos);
+                }
+            }
+        };
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Stop the consumer thread, drain whatever is left and close the sink.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (consumer == null)
+            return;
+        running = false;
+        LockSupport.unpark(consumer);
+        consumer.join();
+        consumer = null;
+        drainAll();
+        sink.close();
+    }
+
+    /**
+     * Drain every buffer once. Only called by the consumer thread, or by
+     * stop() after the consumer has exited.
+     */
+    private int drainAll() {
+        int total = 0;
+        Set<EventBuffer> dead = null;
+        for (EventBuffer buffer : buffers) {
+            total += buffer.drain(sink);
+            if (!buffer.ownerAlive()) {
+                // The owner can no longer produce; one last drain and retire.
+                total += buffer.drain(sink);
+                retiredDrops += buffer.dropped();
+                if (dead == null)
+                    dead = new HashSet<EventBuffer>();
+                dead.add(buffer);
+            }
+        }
+        // Retire them all with one copy of the list, rather than one each.
+        if (dead != null)
+            buffers.removeAll(dead);
+        return total;
+    }
+
+    /** The number of events dropped so far because a buffer was full. */
+    public long dropped() {
+        long total = retiredDrops;
+        for (EventBuffer buffer : buffers)
+            total += buffer.dropped();
+        return total;
+    }
+}
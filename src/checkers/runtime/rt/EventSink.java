@@ -0,0 +1,25 @@
+package checkers.runtime.rt;
+
+/**
+ * Receives batches of runtime events drained from an EventPipeline. Sinks
+ * are called on the pipeline's consumer thread only, so they need not be
+ * thread safe.
+ */
+public interface EventSink {
+    /**
+     * Consume a batch of events. Each event occupies EventBuffer.RECORD_SIZE
+     * consecutive slots of the array: the event kind, the site ID and a
+     * kind-specific value. The array is reused after the call returns, so
+     * sinks must copy anything they want to keep.
+     *
+     * @param records The backing array of the batch.
+     * @param offset The index of the first slot of the first event.
+     * @param count The number of events (not slots) in the batch.
+     */
+    void consume(long[] records, int offset, int count);
+
+    /**
+     * Called once when the pipeline is stopped, after the final drain.
+     */
+    void close();
+}
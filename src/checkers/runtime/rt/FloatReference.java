@@ -0,0 +1,12 @@
+package checkers.runtime.rt;
+
+// A Reference specialized to float locals, so reads and writes of the
+// value do not box.
+public class FloatReference {
+    public float value;
+    public FloatReference() {
+    }
+    public FloatReference(float value) {
+        this.value = value;
+    }
+}
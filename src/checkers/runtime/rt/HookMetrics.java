@@ -0,0 +1,312 @@
+package checkers.runtime.rt;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+/**
+ * Event counts and latency histograms per kind of runtime hook, so that the
+ * time spent inside hooks can be told apart from the rest of a request.
+ * Hooks are timed as
+ *
+ *   long start = HookMetrics.start();
+ *   ...
+ *   HookMetrics.record(HookMetrics.WRAPPED_NEW, start);
+ *
+ * which MeteredRuntime and MeteredAccessListener do for the Runtime and
+ * AccessListener calls, and TypeProfile's hooks do for casts and type
+ * tests; other hooks (such as an Instrumentor's own didCast) can do the
+ * same with a kind from kind(name).
+ *
+ * Metrics are off unless the system property checkers.runtime.metrics is
+ * set. ENABLED is a constant, so when they are off start() and record()
+ * compile to nothing. Recording is lock-free: latencies go into fixed
+ * arrays of BUCKETS log2 buckets (bucket b holds latencies in
+ * [2^b, 2^(b+1)) ns), striped by thread so that threads on different cores
+ * rarely touch the same counter. Each stripe's counters are kept together
+ * and apart from the other stripes', so stripes never share a cache line.
+ *
+ * The metrics are published over JMX as checkers.runtime:type=HookMetrics
+ * and, if checkers.runtime.metrics names a file, written to that file every
+ * checkers.runtime.metrics.interval seconds (default 10) and at exit.
+ */
+public final class HookMetrics implements HookMetricsMXBean {
+    public static final String PROPERTY = "checkers.runtime.metrics";
+    public static final String INTERVAL_PROPERTY =
+        "checkers.runtime.metrics.interval";
+    public static final String MBEAN_NAME = "checkers.runtime:type=HookMetrics";
+
+    public static final boolean ENABLED = System.getProperty(PROPERTY) != null;
+
+    public static final int MAX_KINDS = 32;
+    public static final int BUCKETS = 40;
+    private static final int STRIPES = 8;
+    // Longs per cache line.
+    private static final int PAD = 8;
+    // The stripe stride of totals and counts.
+    private static final int KIND_STRIDE = MAX_KINDS + PAD;
+
+    private static final String[] names = new String[MAX_KINDS];
+    private static final ConcurrentMap<String, Integer> kinds =
+        new ConcurrentHashMap<String, Integer>();
+    private static int kindCount = 0;
+
+    // [kind][stripe][bucket], flattened; each (kind, stripe) histogram
+    // spans several cache lines.
+    private static final AtomicLongArray histograms =
+        new AtomicLongArray(MAX_KINDS * STRIPES * BUCKETS);
+    // [stripe][kind], with a cache line between stripes: total nanoseconds.
+    private static final AtomicLongArray totals =
+        new AtomicLongArray(STRIPES * KIND_STRIDE);
+    // [stripe][kind], likewise: events counted without timing.
+    private static final AtomicLongArray counts =
+        new AtomicLongArray(STRIPES * KIND_STRIDE);
+
+    // The hooks of checkers.runtime.rt.
+    public static final int CAST = kind("cast");
+    public static final int INSTANCEOF = kind("instanceof");
+    public static final int LOAD = kind("load");
+    public static final int STORE = kind("store");
+    public static final int REPEATED = kind("repeated");
+    public static final int BEFORE_CREATION = kind("beforeCreation");
+    public static final int ENTER_CONSTRUCTOR = kind("enterConstructor");
+    public static final int AFTER_CREATION = kind("afterCreation");
+    public static final int WRAPPED_NEW = kind("wrappedNew");
+    public static final int NEW_ARRAY = kind("newArray");
+    public static final int ENTER_TRY = kind("enterTry");
+    public static final int ENTER_CATCH = kind("enterCatch");
+    public static final int END_LIFETIME = kind("endLifetime");
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new HookMetrics(), new ObjectName(MBEAN_NAME));
+            } catch (Exception e) {
+                // Already registered or no JMX; the dump file still works.
+            }
+            String dump = System.getProperty(PROPERTY);
+            if (dump.length() > 0 && !dump.equals("on"))
+                startDumping(new File(dump),
+                             Long.getLong(INTERVAL_PROPERTY, 10L) * 1000);
+        }
+    }
+
+    private HookMetrics() {
+    }
+
+    /**
+     * The ID of the hook kind with the given name, registering it if
+     * needed. Cache the result; this is not meant for the hot path.
+     */
+    public static synchronized int kind(String name) {
+        Integer id = kinds.get(name);
+        if (id != null)
+            return id;
+        if (kindCount == MAX_KINDS)
+            throw new IllegalStateException("too many hook kinds: " + name);
+        names[kindCount] = name;
+        kinds.put(name, kindCount);
+        return kindCount++;
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int)(id ^ (id >>> 16)) & (STRIPES - 1);
+    }
+
+    /** The start time to pass to record(). */
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0L;
+    }
+
+    /** Record one event of the given kind that began at start. */
+    public static void record(int kind, long start) {
+        if (!ENABLED)
+            return;
+        long nanos = System.nanoTime() - start;
+        int bucket = 63 - Long.numberOfLeadingZeros(Math.max(nanos, 1));
+        if (bucket >= BUCKETS)
+            bucket = BUCKETS - 1;
+        int s = stripe();
+        histograms.incrementAndGet((kind * STRIPES + s) * BUCKETS + bucket);
+        totals.addAndGet(s * KIND_STRIDE + kind, nanos);
+    }
+
+    /** Count one event of the given kind without timing it. */
+    public static void count(int kind) {
+        if (ENABLED)
+            counts.incrementAndGet(stripe() * KIND_STRIDE + kind);
+    }
+
+    // Reading. Each counter is read atomically, but not all of them at the
+    // same instant.
+
+    private static int kindOf(String name) {
+        Integer id = kinds.get(name);
+        if (id == null)
+            throw new IllegalArgumentException("no hook kind " + name);
+        return id;
+    }
+
+    static long[] histogram(int kind) {
+        long[] hist = new long[BUCKETS];
+        for (int s = 0; s < STRIPES; s++) {
+            for (int b = 0; b < BUCKETS; b++)
+                hist[b] += histograms.get((kind * STRIPES + s) * BUCKETS + b);
+        }
+        return hist;
+    }
+
+    static long count(int kind, long[] hist) {
+        long n = 0;
+        for (int s = 0; s < STRIPES; s++)
+            n += counts.get(s * KIND_STRIDE + kind);
+        for (long h : hist)
+            n += h;
+        return n;
+    }
+
+    static long totalNanos(int kind) {
+        long n = 0;
+        for (int s = 0; s < STRIPES; s++)
+            n += totals.get(s * KIND_STRIDE + kind);
+        return n;
+    }
+
+    // The upper bound of the bucket holding the p-quantile of the timed
+    // events, or 0 if there are none.
+    static long quantile(long[] hist, double p) {
+        long timed = 0;
+        for (long h : hist)
+            timed += h;
+        if (timed == 0)
+            return 0;
+        long rank = (long)Math.ceil(p * timed);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += hist[b];
+            if (seen >= Math.max(rank, 1))
+                return (1L << (b + 1)) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static synchronized String[] kindNames() {
+        String[] out = new String[kindCount];
+        System.arraycopy(names, 0, out, 0, kindCount);
+        return out;
+    }
+
+    /**
+     * A table of every kind with events: count, mean and the 50th, 99th
+     * and 99.9th percentile latencies (bucket upper bounds), in ns.
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# kind\tcount\tmean_ns\tp50_ns\tp99_ns\tp999_ns\n");
+        String[] kindNames = kindNames();
+        for (int k = 0; k < kindNames.length; k++) {
+            long[] hist = histogram(k);
+            long n = count(k, hist);
+            if (n == 0)
+                continue;
+            long timed = n;
+            for (int s = 0; s < STRIPES; s++)
+                timed -= counts.get(s * KIND_STRIDE + k);
+            sb.append(kindNames[k]).append('\t').append(n).append('\t')
+              .append(timed == 0 ? 0 : totalNanos(k) / timed).append('\t')
+              .append(quantile(hist, 0.5)).append('\t')
+              .append(quantile(hist, 0.99)).append('\t')
+              .append(quantile(hist, 0.999)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Replace the file atomically, so a dashboard never reads half a dump.
+    static void dump(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer w = new FileWriter(tmp);
+        try {
+            w.write("# " + System.currentTimeMillis() + "\n");
+            w.write(report());
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("could not replace " + file);
+        }
+    }
+
+    private static void startDumping(final File file, final long intervalMs) {
+        Thread dumper = new Thread("hook-metrics-dump") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalMs);
+                        dump(file);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        System.err.println("could not dump hook metrics: " + e);
+                    }
+                }
+            }
+        };
+        dumper.setDaemon(true);
+        dumper.start();
+        java.lang.Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    dump(file);
+                } catch (IOException e) {
+                    System.err.println("could not dump hook metrics: " + e);
+                }
+            }
+        });
+    }
+
+    // HookMetricsMXBean
+
+    @Override
+    public String[] getKinds() {
+        return kindNames();
+    }
+
+    @Override
+    public long getCount(String kind) {
+        int k = kindOf(kind);
+        return count(k, histogram(k));
+    }
+
+    @Override
+    public long getTotalNanos(String kind) {
+        return totalNanos(kindOf(kind));
+    }
+
+    @Override
+    public long[] getHistogram(String kind) {
+        return histogram(kindOf(kind));
+    }
+
+    @Override
+    public long getPercentileNanos(String kind, double percentile) {
+        return quantile(histogram(kindOf(kind)), percentile / 100.0);
+    }
+
+    @Override
+    public String getReport() {
+        return report();
+    }
+}
@@ -0,0 +1,15 @@
+package checkers.runtime.rt;
+
+/**
+ * JMX view of HookMetrics, registered as checkers.runtime:type=HookMetrics
+ * when metrics are enabled. Latencies are in nanoseconds; percentiles are
+ * the upper bounds of log2 histogram buckets.
+ */
+public interface HookMetricsMXBean {
+    String[] getKinds();
+    long getCount(String kind);
+    long getTotalNanos(String kind);
+    long[] getHistogram(String kind);
+    long getPercentileNanos(String kind, double percentile);
+    String getReport();
+}
@@ -0,0 +1,78 @@
+package checkers.runtime.rt;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+/**
+ * A run-time switch for instrumentation compiled with -Ajillswitch. Each
+ * instrumented site is emitted as
+ *
+ *   HookSwitch.enabled() ? instrumented : original
+ *
+ * enabled() invokes a MutableCallSite whose target is a constant. The JIT
+ * treats the target as a constant too, so when instrumentation is off the
+ * test and the instrumented branch fold away entirely; flipping the switch
+ * deoptimizes the dependent code, which then recompiles for the new state.
+ *
+ * The initial state comes from the checkers.runtime.hooks system property
+ * ("off" disables). The switch can be flipped with set() or over
+ * JMX as checkers.runtime:type=HookSwitch.
+ */
+public final class HookSwitch implements HookSwitchMXBean {
+    public static final String PROPERTY = "checkers.runtime.hooks";
+    public static final String MBEAN_NAME = "checkers.runtime:type=HookSwitch";
+
+    private static final MutableCallSite site = new MutableCallSite(
+        constant(!"off".equals(System.getProperty(PROPERTY))));
+    private static final MethodHandle invoker = site.dynamicInvoker();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new HookSwitch(), new ObjectName(MBEAN_NAME));
+        } catch (Exception e) {
+            // Already registered (e.g., by another class loader) or JMX is
+            // unavailable; the switch still works through set().
+        }
+    }
+
+    private HookSwitch() {
+    }
+
+    private static MethodHandle constant(boolean value) {
+        return MethodHandles.constant(boolean.class, value);
+    }
+
+    /**
+     * Whether instrumentation hooks should run. This is the test emitted at
+     * every site.
+     */
+    public static boolean enabled() {
+        try {
+            return (boolean)invoker.invokeExact();
+        } catch (Throwable t) {
+            throw new AssertionError(t); // A constant cannot throw.
+        }
+    }
+
+    public static synchronized void set(boolean enabled) {
+        if (enabled != enabled()) {
+            site.setTarget(constant(enabled));
+            MutableCallSite.syncAll(new MutableCallSite[] { site });
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        set(enabled);
+    }
+}
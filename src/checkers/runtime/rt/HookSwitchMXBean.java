@@ -0,0 +1,9 @@
+package checkers.runtime.rt;
+
+/**
+ * JMX view of HookSwitch, registered as checkers.runtime:type=HookSwitch.
+ */
+public interface HookSwitchMXBean {
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+}
@@ -0,0 +1,12 @@
+package checkers.runtime.rt;
+
+// A Reference specialized to int locals, so reads and writes of the
+// value do not box.
+public class IntReference {
+    public int value;
+    public IntReference() {
+    }
+    public IntReference(int value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,370 @@
+package checkers.runtime.rt;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A runtime that measures how long objects live. Every object whose
+ * creation is announced gets a phantom reference that remembers its birth
+ * time, size and creation site. Statistics are kept per site ID (see
+ * SiteTable), as passed to beforeCreation; objects tracked without one are
+ * grouped by class instead. An object's lifetime ends either when the
+ * program says so, or when the collector finds it unreachable and enqueues
+ * the phantom. The program says so by passing the phantom to
+ * endLifetime(PhantomReference), or, if the tracker was built to index its
+ * objects, by passing the object itself to endLifetime(Object); that is how
+ * instrumented code, which never sees the phantoms, ends a lifetime.
+ *
+ * created() tracks each creation once, however many instrumented
+ * constructors the object runs (see CreationStackRuntime.enterConstructor).
+ *
+ * Phantoms are only enqueued while they are themselves strongly reachable,
+ * so they are kept in a table. The table is sharded by thread, and each
+ * phantom stores its own shard and slot, so registering and removing are an
+ * array store under an uncontended shard lock: no hashing and no
+ * identityHashCode (which would inflate every tracked object's header),
+ * unless the object index is asked for, which adds a WeakIdentityMap entry
+ * per tracked object. A dedicated daemon thread drains the reference queue
+ * in batches of up to BATCH phantoms; an object is kept reachable until its
+ * phantom is registered, so the drainer never sees an unregistered one.
+ *
+ * Overhead per tracked object, with compressed oops: one TrackedPhantom (a
+ * 12-byte header, the four fields inherited from java.lang.ref.Reference,
+ * and birth, size, site, shard and slot: 52 bytes, 56 once aligned), one
+ * table slot (4 bytes), and, once the object is dead, one free-list entry
+ * (4 bytes) until its slot is reused. At most maxTracked objects are
+ * tracked at a time; creations beyond that are counted in untracked() and
+ * otherwise ignored, so the overhead is bounded by about 64 * maxTracked
+ * bytes.
+ */
+public class LifetimeTracker extends CreationStackRuntime {
+    public static final int SHARDS = 64;
+    public static final int BATCH = 1024;
+    /** Buckets of the lifetime histograms (log2 of nanoseconds). */
+    public static final int LIFETIME_BUCKETS = 64;
+    /** Buckets of the size histograms (log2 of bytes). */
+    public static final int SIZE_BUCKETS = 33;
+
+    /** Lifetime and size histograms for one site. */
+    public static final class SiteStats {
+        /** The site ID, or -1 for objects tracked without one. */
+        public final int site;
+        /** The class of the (first) object tracked at the site. */
+        public final Class<?> cls;
+        private final AtomicLongArray lifetimes =
+            new AtomicLongArray(LIFETIME_BUCKETS);
+        private final AtomicLongArray sizes = new AtomicLongArray(SIZE_BUCKETS);
+        private final AtomicLong ended = new AtomicLong();
+        private final AtomicLong collected = new AtomicLong();
+
+        SiteStats(int site, Class<?> cls) {
+            this.site = site;
+            this.cls = cls;
+        }
+
+        void record(long lifetime, int size, boolean explicit) {
+            lifetimes.incrementAndGet(
+                63 - Long.numberOfLeadingZeros(Math.max(lifetime, 1)));
+            sizes.incrementAndGet(32 - Integer.numberOfLeadingZeros(size));
+            (explicit ? ended : collected).incrementAndGet();
+        }
+
+        /** Objects whose lifetime was ended with endLifetime(). */
+        public long ended() {
+            return ended.get();
+        }
+
+        /** Objects whose lifetime was ended by the collector. */
+        public long collected() {
+            return collected.get();
+        }
+
+        /** Dead objects whose lifetime was in [2^bucket, 2^(bucket+1)) ns. */
+        public long lifetimes(int bucket) {
+            return lifetimes.get(bucket);
+        }
+
+        /** Dead objects of 0 bytes (bucket 0) or [2^(b-1), 2^b) bytes. */
+        public long sizes(int bucket) {
+            return sizes.get(bucket);
+        }
+    }
+
+    private static final class TrackedPhantom extends PhantomReference<Object> {
+        final long birth = System.nanoTime();
+        final int size;
+        final SiteStats site;
+        // The shard holding the phantom, and its index there; the slot is
+        // -1 once the lifetime has been recorded.
+        volatile Shard shard;
+        int slot;
+
+        TrackedPhantom(Object referent, ReferenceQueue<Object> queue,
+                       int size, SiteStats site) {
+            super(referent, queue);
+            this.size = size;
+            this.site = site;
+        }
+    }
+
+    private static final class Shard {
+        // Written with each object just registered here, to keep it
+        // reachable until then (a Java 8 stand-in for reachabilityFence).
+        volatile Object fence;
+        private final int limit;
+        private TrackedPhantom[] slots = new TrackedPhantom[64];
+        private int[] free = new int[64];
+        private int freeCount = 0;
+        private int used = 0;
+
+        Shard(int limit) {
+            this.limit = limit;
+        }
+
+        synchronized boolean add(TrackedPhantom p) {
+            int slot;
+            if (freeCount > 0) {
+                slot = free[--freeCount];
+            } else {
+                if (used == limit)
+                    return false;
+                if (used == slots.length) {
+                    int n = Math.min(slots.length * 2, limit);
+                    TrackedPhantom[] newSlots = new TrackedPhantom[n];
+                    System.arraycopy(slots, 0, newSlots, 0, used);
+                    slots = newSlots;
+                }
+                slot = used++;
+            }
+            slots[slot] = p;
+            p.shard = this;
+            p.slot = slot;
+            return true;
+        }
+
+        // Remove a phantom; false if it was already removed.
+        synchronized boolean remove(TrackedPhantom p) {
+            if (p.slot < 0)
+                return false;
+            slots[p.slot] = null;
+            if (freeCount == free.length) {
+                int[] newFree = new int[free.length * 2];
+                System.arraycopy(free, 0, newFree, 0, freeCount);
+                free = newFree;
+            }
+            free[freeCount++] = p.slot;
+            p.slot = -1;
+            return true;
+        }
+
+        synchronized int live() {
+            return used - freeCount;
+        }
+    }
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    private final Shard[] shards = new Shard[SHARDS];
+    private final ConcurrentMap<Integer, SiteStats> sites =
+        new ConcurrentHashMap<Integer, SiteStats>();
+    // Objects tracked without a site, by class.
+    private final ConcurrentMap<Class<?>, SiteStats> unsited =
+        new ConcurrentHashMap<Class<?>, SiteStats>();
+    private final AtomicLong untracked = new AtomicLong();
+    // The phantoms of tracked objects, by object, or null if not indexed.
+    private final WeakIdentityMap<TrackedPhantom> phantoms;
+
+    public LifetimeTracker() {
+        this(1 << 22);
+    }
+
+    /**
+     * @param maxTracked The maximum number of objects tracked at once.
+     */
+    public LifetimeTracker(int maxTracked) {
+        this(maxTracked, false);
+    }
+
+    /**
+     * @param maxTracked The maximum number of objects tracked at once.
+     * @param indexed Whether to index the tracked objects, so that
+     *                endLifetime(Object) can find their phantoms.
+     */
+    public LifetimeTracker(int maxTracked, boolean indexed) {
+        phantoms = indexed ? new WeakIdentityMap<TrackedPhantom>() : null;
+        for (int i = 0; i < SHARDS; i++)
+            shards[i] = new Shard(Math.max(1, maxTracked / SHARDS));
+        Thread drainer = new Thread("lifetime-drainer") {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    private int shardIndex() {
+        long id = Thread.currentThread().getId();
+        return (int)(id ^ (id >>> 16)) & (SHARDS - 1);
+    }
+
+    private SiteStats site(int site, Class<?> cls) {
+        SiteStats s = site >= 0 ? sites.get(site) : unsited.get(cls);
+        if (s == null) {
+            SiteStats fresh = new SiteStats(site, cls);
+            s = site >= 0 ? sites.putIfAbsent(site, fresh)
+                          : unsited.putIfAbsent(cls, fresh);
+            if (s == null)
+                s = fresh;
+        }
+        return s;
+    }
+
+    /**
+     * Start tracking an object that has no site. Returns its phantom, to be
+     * passed to endLifetime(), or null if the table is full.
+     */
+    public <T> PhantomReference<T> track(T object, int size) {
+        return track(object, size, -1);
+    }
+
+    /**
+     * Start tracking an object created at the given site (or -1). Returns
+     * its phantom, to be passed to endLifetime(), or null if the table is
+     * full.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> PhantomReference<T> track(T object, int size, int site) {
+        SiteStats stats = site(site, object.getClass());
+        // Start at this thread's shard; move on to the others only when it
+        // is full.
+        TrackedPhantom p = new TrackedPhantom(object, queue, size, stats);
+        int first = shardIndex();
+        for (int i = 0; i < SHARDS; i++) {
+            Shard shard = shards[(first + i) & (SHARDS - 1)];
+            if (shard.add(p)) {
+                if (phantoms != null)
+                    phantoms.put(object, p);
+                // Until here, the object must not be found unreachable:
+                // the drainer needs p.shard to remove the phantom.
+                shard.fence = object;
+                shard.fence = null;
+                return (PhantomReference<T>)(PhantomReference<?>)p;
+            }
+        }
+        p.clear();
+        untracked.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    protected void created(Object created, boolean approx) {
+        CreationStack stack = stack();
+        track(created, stack.topSize(), stack.topSite());
+    }
+
+    @Override
+    public void endLifetime(PhantomReference<Object> ref) {
+        if (ref instanceof TrackedPhantom) {
+            TrackedPhantom p = (TrackedPhantom)ref;
+            finish(p, true);
+            p.clear();
+        }
+    }
+
+    /**
+     * End the lifetime of a tracked object. Only works if the tracker was
+     * built to index its objects; returns whether the object was tracked.
+     */
+    public boolean endLifetime(Object object) {
+        TrackedPhantom p = phantoms == null ? null : phantoms.remove(object);
+        if (p == null)
+            return false;
+        endLifetime(p);
+        return true;
+    }
+
+    private void finish(TrackedPhantom p, boolean explicit) {
+        Shard shard = p.shard;
+        if (shard != null && shard.remove(p))
+            p.site.record(System.nanoTime() - p.birth, p.size, explicit);
+    }
+
+    private void drain() {
+        TrackedPhantom[] batch = new TrackedPhantom[BATCH];
+        while (true) {
+            int n = 0;
+            try {
+                batch[n++] = (TrackedPhantom)queue.remove();
+            } catch (InterruptedException e) {
+                return;
+            }
+            java.lang.ref.Reference<?> r;
+            while (n < BATCH && (r = queue.poll()) != null)
+                batch[n++] = (TrackedPhantom)r;
+            for (int i = 0; i < n; i++) {
+                // One bad phantom must not stop the only drainer.
+                try {
+                    finish(batch[i], false);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                batch[i] = null;
+            }
+            if (phantoms != null)
+                phantoms.expunge();
+        }
+    }
+
+    /** The number of objects currently tracked. */
+    public long live() {
+        long live = 0;
+        for (Shard s : shards)
+            live += s.live();
+        return live;
+    }
+
+    /** The number of creations not tracked because the table was full. */
+    public long untracked() {
+        return untracked.get();
+    }
+
+    /** The statistics of every site seen so far. */
+    public List<SiteStats> sites() {
+        List<SiteStats> all = new ArrayList<SiteStats>(sites.values());
+        all.addAll(unsited.values());
+        return all;
+    }
+
+    /** A human-readable report of the lifetime and size histograms. */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("live: ").append(live())
+          .append(", untracked: ").append(untracked()).append('\n');
+        for (SiteStats s : sites()) {
+            if (s.site >= 0)
+                sb.append("site ").append(s.site).append(' ');
+            sb.append(s.cls.getName()).append(": ").append(s.ended())
+              .append(" ended, ").append(s.collected()).append(" collected\n");
+            sb.append("  lifetime (ns):\n");
+            for (int i = 0; i < LIFETIME_BUCKETS; i++) {
+                if (s.lifetimes(i) != 0)
+                    sb.append(String.format("    >= 2^%-3d %12d%n", i,
+                                            s.lifetimes(i)));
+            }
+            sb.append("  size (bytes):\n");
+            for (int i = 0; i < SIZE_BUCKETS; i++) {
+                if (s.sizes(i) != 0)
+                    sb.append(String.format("    < 2^%-4d %12d%n", i,
+                                            s.sizes(i)));
+            }
+        }
+        return sb.toString();
+    }
+}
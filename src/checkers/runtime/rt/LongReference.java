@@ -0,0 +1,12 @@
+package checkers.runtime.rt;
+
+// A Reference specialized to long locals, so reads and writes of the
+// value do not box.
+public class LongReference {
+    public long value;
+    public LongReference() {
+    }
+    public LongReference(long value) {
+        this.value = value;
+    }
+}
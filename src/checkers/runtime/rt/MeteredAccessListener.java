@@ -0,0 +1,148 @@
+package checkers.runtime.rt;
+
+/**
+ * An AccessListener that times every call to another listener in
+ * HookMetrics, under the LOAD, STORE and REPEATED kinds. Install it as
+ *
+ *   Accesses.listener = new MeteredAccessListener(listener);
+ */
+public class MeteredAccessListener implements AccessListener {
+    private final AccessListener delegate;
+
+    public MeteredAccessListener(AccessListener delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void load(int site, int value) {
+        long start = HookMetrics.start();
+        delegate.load(site, value);
+        HookMetrics.record(HookMetrics.LOAD, start);
+    }
+
+    @Override
+    public void load(int site, long value) {
+        long start = HookMetrics.start();
+        delegate.load(site, value);
+        HookMetrics.record(HookMetrics.LOAD, start);
+    }
+
+    @Override
+    public void load(int site, double value) {
+        long start = HookMetrics.start();
+        delegate.load(site, value);
+        HookMetrics.record(HookMetrics.LOAD, start);
+    }
+
+    @Override
+    public void load(int site, float value) {
+        long start = HookMetrics.start();
+        delegate.load(site, value);
+        HookMetrics.record(HookMetrics.LOAD, start);
+    }
+
+    @Override
+    public void load(int site, boolean value) {
+        long start = HookMetrics.start();
+        delegate.load(site, value);
+        HookMetrics.record(HookMetrics.LOAD, start);
+    }
+
+    @Override
+    public void load(int site, char value) {
+        long start = HookMetrics.start();
+        delegate.load(site, value);
+        HookMetrics.record(HookMetrics.LOAD, start);
+    }
+
+    @Override
+    public void load(int site, byte value) {
+        long start = HookMetrics.start();
+        delegate.load(site, value);
+        HookMetrics.record(HookMetrics.LOAD, start);
+    }
+
+    @Override
+    public void load(int site, short value) {
+        long start = HookMetrics.start();
+        delegate.load(site, value);
+        HookMetrics.record(HookMetrics.LOAD, start);
+    }
+
+    @Override
+    public void load(int site, Object value) {
+        long start = HookMetrics.start();
+        delegate.load(site, value);
+        HookMetrics.record(HookMetrics.LOAD, start);
+    }
+
+    @Override
+    public void store(int site, int value) {
+        long start = HookMetrics.start();
+        delegate.store(site, value);
+        HookMetrics.record(HookMetrics.STORE, start);
+    }
+
+    @Override
+    public void store(int site, long value) {
+        long start = HookMetrics.start();
+        delegate.store(site, value);
+        HookMetrics.record(HookMetrics.STORE, start);
+    }
+
+    @Override
+    public void store(int site, double value) {
+        long start = HookMetrics.start();
+        delegate.store(site, value);
+        HookMetrics.record(HookMetrics.STORE, start);
+    }
+
+    @Override
+    public void store(int site, float value) {
+        long start = HookMetrics.start();
+        delegate.store(site, value);
+        HookMetrics.record(HookMetrics.STORE, start);
+    }
+
+    @Override
+    public void store(int site, boolean value) {
+        long start = HookMetrics.start();
+        delegate.store(site, value);
+        HookMetrics.record(HookMetrics.STORE, start);
+    }
+
+    @Override
+    public void store(int site, char value) {
+        long start = HookMetrics.start();
+        delegate.store(site, value);
+        HookMetrics.record(HookMetrics.STORE, start);
+    }
+
+    @Override
+    public void store(int site, byte value) {
+        long start = HookMetrics.start();
+        delegate.store(site, value);
+        HookMetrics.record(HookMetrics.STORE, start);
+    }
+
+    @Override
+    public void store(int site, short value) {
+        long start = HookMetrics.start();
+        delegate.store(site, value);
+        HookMetrics.record(HookMetrics.STORE, start);
+    }
+
+    @Override
+    public void store(int site, Object value) {
+        long start = HookMetrics.start();
+        delegate.store(site, value);
+        HookMetrics.record(HookMetrics.STORE, start);
+    }
+
+    @Override
+    public void repeated(int site, long count) {
+        long start = HookMetrics.start();
+        delegate.repeated(site, count);
+        HookMetrics.record(HookMetrics.REPEATED, start);
+    }
+}
@@ -0,0 +1,82 @@
+package checkers.runtime.rt;
+
+import java.lang.ref.PhantomReference;
+
+/**
+ * A Runtime that times every call to another Runtime in HookMetrics, one
+ * kind per method. With metrics off, each call is a plain delegation.
+ */
+public class MeteredRuntime implements Runtime {
+    private final Runtime delegate;
+
+    public MeteredRuntime(Runtime delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public int beforeCreation(Object creator, boolean approx,
+                              int preciseSize, int approxSize, int site) {
+        long start = HookMetrics.start();
+        int result = delegate.beforeCreation(creator, approx,
+                                             preciseSize, approxSize, site);
+        HookMetrics.record(HookMetrics.BEFORE_CREATION, start);
+        return result;
+    }
+
+    @Override
+    public boolean enterConstructor(Object created) {
+        long start = HookMetrics.start();
+        boolean result = delegate.enterConstructor(created);
+        HookMetrics.record(HookMetrics.ENTER_CONSTRUCTOR, start);
+        return result;
+    }
+
+    @Override
+    public boolean afterCreation(Object creator, Object created) {
+        long start = HookMetrics.start();
+        boolean result = delegate.afterCreation(creator, created);
+        HookMetrics.record(HookMetrics.AFTER_CREATION, start);
+        return result;
+    }
+
+    @Override
+    public <T> T wrappedNew(int before, T created, Object creator) {
+        long start = HookMetrics.start();
+        T result = delegate.wrappedNew(before, created, creator);
+        HookMetrics.record(HookMetrics.WRAPPED_NEW, start);
+        return result;
+    }
+
+    @Override
+    public int enterTry() {
+        long start = HookMetrics.start();
+        int result = delegate.enterTry();
+        HookMetrics.record(HookMetrics.ENTER_TRY, start);
+        return result;
+    }
+
+    @Override
+    public void enterCatch(int depth) {
+        long start = HookMetrics.start();
+        delegate.enterCatch(depth);
+        HookMetrics.record(HookMetrics.ENTER_CATCH, start);
+    }
+
+    @Override
+    public <T> T newArray(T created, int dims, boolean approx,
+                          int preciseElSize, int approxElSize,
+                          int baseSize, int site) {
+        long start = HookMetrics.start();
+        T result = delegate.newArray(created, dims, approx, preciseElSize,
+                                     approxElSize, baseSize, site);
+        HookMetrics.record(HookMetrics.NEW_ARRAY, start);
+        return result;
+    }
+
+    @Override
+    public void endLifetime(PhantomReference<Object> ref) {
+        long start = HookMetrics.start();
+        delegate.endLifetime(ref);
+        HookMetrics.record(HookMetrics.END_LIFETIME, start);
+    }
+}
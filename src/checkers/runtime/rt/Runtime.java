@@ -6,21 +6,28 @@ import java.lang.ref.PhantomReference;
 public interface Runtime {
     /**
      * This method is called immediately before an object creation.
-     * The runtime keeps a stack of (creator, approx) pairs, per thread ID.
+     * The runtime keeps a stack of (creator, approx) pairs, per thread.
      *
      * @param creator The object that is instantiating the new object.
      * @param approx True, iff the new object should be approximate.
      * @param preciseSize The precise memory (in bytes) used by the object.
      * @param approxSize The approximate memory used by the object.
+     * @param site The ID of the creation site (see SiteTable).
+     * @return The depth of the stack before the push, to be passed on to
+     *         wrappedNew.
      */
-    boolean beforeCreation(Object creator, boolean approx,
-                           int preciseSize, int approxSize);
+    int beforeCreation(Object creator, boolean approx,
+                       int preciseSize, int approxSize, int site);
 
     /**
      * Insert the newly created object into the runtime system.
-     * Use the top of the stack of the current tread ID to determine, what
+     * Use the top of the stack of the current thread to determine, what
      * precision to use.
      *
+     * Every instrumented constructor calls this after its super() call, so
+     * an object whose superclass is also instrumented enters more than
+     * once; only the first call for a pending creation should count.
+     *
      * TODO: How do we detect an instantiation of an EnerJ class, by non-EnerJ code?
      * The stack will not contain the precision information and by just taking the
      * top of the stack we mess up the order.
@@ -45,12 +52,17 @@ public interface Runtime {
      * interface.
      *
      * @param <T> Make the method usable for any object instantiation.
+     * A creation whose constructor throws never reaches wrappedNew, so its
+     * stack entry is left behind. wrappedNew therefore pops the stack back
+     * to the depth beforeCreation returned, discarding any such entries
+     * along with its own, rather than just popping the top.
+     *
      * @param before The result of the corresponding beforeCreation call.
      * @param created The object that was instantiated.
      * @param creator The "this" object at the point of instantiation.
      * @return The object that was instantiated, i.e. parameter created.
      */
-    <T> T wrappedNew(boolean before, T created, Object creator);
+    <T> T wrappedNew(int before, T created, Object creator);
 
     /**
      * Wrap an array initialization.
@@ -61,9 +73,34 @@ public interface Runtime {
      * @param approx Whether the component type is, in fact, approximate.
      * @param preciseElSize The precise size of the component type.
      * @param approxElSize The approximate size of the component type.
+     * @param baseSize The size of an empty array (header and length), in
+     *                 the same memory model as the element sizes.
+     * @param site The ID of the creation site (see SiteTable).
      */
     <T> T newArray(T created, int dims, boolean approx,
-                   int preciseElSize, int approxElSize);
+                   int preciseElSize, int approxElSize, int baseSize,
+                   int site);
+
+    /**
+     * Called on entry to a try statement that has catch clauses, in
+     * instrumented code that reports creations.
+     *
+     * @return The depth of the current thread's creation stack, to be
+     *         passed on to enterCatch.
+     */
+    int enterTry();
+
+    /**
+     * Called first thing in each catch clause of such a try statement. The
+     * exception may have been thrown by a constructor, or while evaluating
+     * its arguments, after beforeCreation pushed and before wrappedNew could
+     * pop; the stack is popped back to the depth enterTry returned, so that
+     * a thread that keeps catching such exceptions does not keep growing
+     * its stack.
+     *
+     * @param depth The result of the corresponding enterTry call.
+     */
+    void enterCatch(int depth);
 
     /**
      * Signal that the object associated with the phantom reference (returned
@@ -0,0 +1,107 @@
+package checkers.runtime.rt;
+
+/**
+ * Decides, per thread, which instrumented events are passed on to the
+ * runtime when the checker is run in sampling mode (-Ajillsample). Every
+ * instrumented site is guarded by a call to every() or random(); on the
+ * events that are not sampled, the call is a thread-local decrement and a
+ * branch.
+ *
+ * A runtime hook that is reached in sampling mode can call weight() to find
+ * out how many events the current sample stands for, and scale its counts
+ * accordingly.
+ *
+ * The countdowns are thread-local, so they disappear with their threads,
+ * and a thread's first countdown is drawn at random: with millions of
+ * short-lived (e.g. virtual) threads that each run a few events, sampling
+ * every thread's first event would badly skew the rate.
+ */
+public final class Sampler {
+    private Sampler() {
+    }
+
+    private static final class Countdown {
+        int remaining = 0;
+        // 0 until the first event, when the first countdown is drawn.
+        int weight = 0;
+        // xorshift state for random sampling; seeded per thread.
+        long seed = System.nanoTime() ^ Thread.currentThread().getId() ^
+            0x9E3779B97F4A7C15L;
+
+        double nextUniform() {
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            // 53 random bits in (0, 1].
+            return ((seed >>> 11) + 1) * (1.0 / (1L << 53));
+        }
+    }
+
+    private static final ThreadLocal<Countdown> countdowns =
+        new ThreadLocal<Countdown>() {
+            @Override
+            protected Countdown initialValue() {
+                return new Countdown();
+            }
+        };
+
+    /**
+     * Sample one event in every period, starting at a random phase on each
+     * thread.
+     */
+    public static boolean every(int period) {
+        Countdown c = countdowns.get();
+        if (c.weight == 0) {
+            c.weight = period;
+            // Uniform in [1, period].
+            c.remaining = (int)Math.ceil(c.nextUniform() * period);
+        }
+        if (--c.remaining > 0)
+            return false;
+        c.remaining = period;
+        c.weight = period;
+        return true;
+    }
+
+    /**
+     * Sample each event independently with the given probability. The gaps
+     * between samples are drawn from the geometric distribution, so the
+     * common case is still just a countdown.
+     */
+    public static boolean random(double rate) {
+        Countdown c = countdowns.get();
+        if (c.weight == 0) {
+            c.weight = weightOf(rate);
+            c.remaining = gap(c, rate);
+        }
+        if (--c.remaining > 0)
+            return false;
+        c.remaining = gap(c, rate);
+        c.weight = weightOf(rate);
+        return true;
+    }
+
+    // Each sample stands for 1/rate events on average.
+    private static int weightOf(double rate) {
+        return (int)Math.min(Integer.MAX_VALUE, Math.round(1.0 / rate));
+    }
+
+    private static int gap(Countdown c, double rate) {
+        int gap;
+        if (rate >= 1.0) {
+            gap = 1;
+        } else {
+            double g = Math.log(c.nextUniform()) / Math.log(1.0 - rate);
+            gap = g >= Integer.MAX_VALUE ? Integer.MAX_VALUE : 1 + (int)g;
+        }
+        return gap;
+    }
+
+    /**
+     * The number of events the current thread's latest sample represents.
+     * 1 when not sampling.
+     */
+    public static int weight() {
+        return Math.max(countdowns.get().weight, 1);
+    }
+}
@@ -0,0 +1,12 @@
+package checkers.runtime.rt;
+
+// A Reference specialized to short locals, so reads and writes of the
+// value do not box.
+public class ShortReference {
+    public short value;
+    public ShortReference() {
+    }
+    public ShortReference(short value) {
+        this.value = value;
+    }
+}
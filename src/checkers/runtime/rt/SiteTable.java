@@ -0,0 +1,147 @@
+package checkers.runtime.rt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Maps the dense integer site IDs that the instrumentation passes to runtime
+ * hooks back to the source locations they were emitted for. The checker
+ * builds the table during compilation and writes it as a tab-separated side
+ * file (one "id kind file line expression fromType toType" row per site);
+ * runtimes and offline tools read it back with read().
+ */
+public class SiteTable {
+    /** One instrumented site. */
+    public static final class Site {
+        public final int id;
+        public final String kind;
+        public final String file;
+        public final long line;
+        public final String expr;
+        public final String fromType;
+        public final String toType;
+
+        Site(int id, String kind, String file, long line, String expr,
+             String fromType, String toType) {
+            this.id = id;
+            this.kind = kind;
+            this.file = file;
+            this.line = line;
+            this.expr = expr;
+            this.fromType = fromType;
+            this.toType = toType;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + expr + " at " + file + ":" + line;
+        }
+    }
+
+    private final ArrayList<Site> sites = new ArrayList<Site>();
+    // The ID of sites.get(0).
+    private final int firstId;
+    // Number of rows already written by flush().
+    private int flushed = 0;
+
+    public SiteTable() {
+        this(0);
+    }
+
+    /**
+     * A table whose IDs start at firstId, for compilations that only add
+     * to the sites of an earlier one (see InstrumentationCache).
+     */
+    public SiteTable(int firstId) {
+        this.firstId = firstId;
+    }
+
+    /**
+     * Register a new site and return its ID. IDs are assigned densely from
+     * zero (or the first ID), so runtimes can index flat arrays with them.
+     */
+    public synchronized int add(String kind, String file, long line,
+                                String expr, String fromType,
+                                String toType) {
+        int id = firstId + sites.size();
+        sites.add(new Site(id, kind, clean(file), line, clean(expr),
+                           clean(fromType), clean(toType)));
+        return id;
+    }
+
+    public synchronized int size() {
+        return sites.size();
+    }
+
+    /** The ID the next site will get. */
+    public synchronized int nextId() {
+        return firstId + sites.size();
+    }
+
+    /** Get a site by ID, or null if the ID is unknown. */
+    public synchronized Site get(int id) {
+        if (id < firstId || id >= firstId + sites.size())
+            return null;
+        return sites.get(id - firstId);
+    }
+
+    // Keep each row on one line and its columns apart.
+    private static String clean(String s) {
+        if (s == null)
+            return "";
+        return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * Write the sites added since the last flush. The first flush replaces
+     * any existing file; later ones append to it.
+     */
+    public synchronized void flush(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file, flushed > 0));
+        try {
+            for (; flushed < sites.size(); flushed++) {
+                Site s = sites.get(flushed);
+                out.println(s.id + "\t" + s.kind + "\t" + s.file + "\t" +
+                            s.line + "\t" + s.expr + "\t" + s.fromType +
+                            "\t" + s.toType);
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError())
+            throw new IOException("could not write site table " + file);
+    }
+
+    /**
+     * Read a table written by flush().
+     */
+    public static SiteTable read(File file) throws IOException {
+        SiteTable table = new SiteTable();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() == 0)
+                    continue;
+                String[] cols = line.split("\t", -1);
+                if (cols.length != 7)
+                    throw new IOException("malformed site table row: " + line);
+                int id = Integer.parseInt(cols[0]);
+                if (id != table.sites.size())
+                    throw new IOException("site IDs out of order at " + id);
+                table.sites.add(new Site(id, cols[1], cols[2],
+                                         Long.parseLong(cols[3]), cols[4],
+                                         cols[5], cols[6]));
+            }
+        } finally {
+            in.close();
+        }
+        table.flushed = table.sites.size();
+        return table;
+    }
+}
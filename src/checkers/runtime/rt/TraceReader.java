@@ -0,0 +1,116 @@
+package checkers.runtime.rt;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Streams the events of a trace written by TraceWriter, across all of its
+ * files in order. Typical use:
+ *
+ *   TraceReader reader = new TraceReader("trace");
+ *   while (reader.next()) {
+ *       ... reader.kind(), reader.site(), reader.value() ...
+ *   }
+ *   reader.close();
+ */
+public class TraceReader {
+    private final String base;
+    private int fileIndex = 0;
+    private InputStream in = null;
+
+    private int kind;
+    private long site;
+    private long value;
+
+    public TraceReader(String base) {
+        this.base = base;
+    }
+
+    // Open the next trace file, returning false if there is none.
+    private boolean openNext() throws IOException {
+        close();
+        File f = TraceWriter.traceFile(base, fileIndex);
+        if (!f.exists())
+            return false;
+        fileIndex++;
+        in = new BufferedInputStream(new FileInputStream(f), 1 << 16);
+
+        byte[] header = new byte[TraceWriter.MAGIC.length];
+        for (int i = 0; i < header.length; i++)
+            header[i] = (byte)readByte();
+        if (!Arrays.equals(header, TraceWriter.MAGIC))
+            throw new IOException("not a trace file: " + f);
+        int version = readByte();
+        if (version != TraceWriter.VERSION)
+            throw new IOException("unsupported trace version " + version +
+                                  " in " + f);
+        site = 0;
+        value = 0;
+        return true;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0)
+            throw new EOFException();
+        return b;
+    }
+
+    private long readVarint() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            v |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("malformed varint in trace");
+    }
+
+    private long readZigzag() throws IOException {
+        long v = readVarint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Advance to the next event.
+     *
+     * @return False when the trace is exhausted.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (in == null && !openNext())
+                return false;
+            int b = in.read();
+            if (b <= 0) {
+                // End of this file's data; move on.
+                close();
+                continue;
+            }
+            // Kinds are varints too; b is their first byte.
+            long k = b & 0x7F;
+            if ((b & 0x80) != 0)
+                k |= readVarint() << 7;
+            kind = (int)k;
+            site += readZigzag();
+            value += readZigzag();
+            return true;
+        }
+    }
+
+    public int kind() { return kind; }
+    public long site() { return site; }
+    public long value() { return value; }
+
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package checkers.runtime.rt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An EventSink that stores events in a compact binary trace. Events are
+ * written through a MappedByteBuffer, so recording costs no system call;
+ * when a file's mapping fills up, the file is trimmed and the writer rolls
+ * over to the next one.
+ *
+ * The files are named base.0.trc, base.1.trc, and so on. Each starts with
+ * the MAGIC bytes and a version byte, followed by events encoded as:
+ *
+ *   varint   kind (never zero)
+ *   zigzag   site  - previous event's site
+ *   zigzag   value - previous event's value
+ *
+ * Deltas restart from zero in every file, so each file can be read on its
+ * own. A zero byte where a kind is expected marks the end of the data
+ * (which is how a trace cut short by a crash, and therefore never trimmed,
+ * ends). Use TraceReader to read traces back.
+ */
+public class TraceWriter implements EventSink {
+    static final byte[] MAGIC = { 'J', 'T', 'R', 'C' };
+    static final byte VERSION = 1;
+    static final String SUFFIX = ".trc";
+    // Three varints of at most ten bytes each.
+    private static final int MAX_EVENT_SIZE = 30;
+
+    public static final long DEFAULT_FILE_SIZE = 64L << 20;
+
+    private final String base;
+    private final long fileSize;
+
+    private int fileIndex = 0;
+    private RandomAccessFile file = null;
+    private MappedByteBuffer buffer = null;
+    private long lastSite;
+    private long lastValue;
+
+    public TraceWriter(String base) throws IOException {
+        this(base, DEFAULT_FILE_SIZE);
+    }
+
+    /**
+     * @param base The path prefix of the trace files.
+     * @param fileSize The size of each file's mapping, in bytes.
+     */
+    public TraceWriter(String base, long fileSize) throws IOException {
+        if (fileSize < MAGIC.length + 1 + MAX_EVENT_SIZE ||
+                fileSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("bad trace file size: " + fileSize);
+        this.base = base;
+        this.fileSize = fileSize;
+
+        // Remove any older trace with the same name so that readers do not
+        // run on into its stale files.
+        for (int i = 0; traceFile(base, i).delete(); i++) {
+        }
+
+        roll();
+    }
+
+    static File traceFile(String base, int index) {
+        return new File(base + "." + index + SUFFIX);
+    }
+
+    // Finish the current file (if any) and start the next one.
+    private void roll() throws IOException {
+        finishFile();
+        file = new RandomAccessFile(traceFile(base, fileIndex++), "rw");
+        file.setLength(0);
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                       fileSize);
+        buffer.put(MAGIC);
+        buffer.put(VERSION);
+        lastSite = 0;
+        lastValue = 0;
+    }
+
+    // Flush the mapping and trim the file to the data actually written.
+    private void finishFile() throws IOException {
+        if (file == null)
+            return;
+        int length = buffer.position();
+        buffer.force();
+        buffer = null;
+        file.getChannel().truncate(length);
+        file.close();
+        file = null;
+    }
+
+    private void putVarint(long v) {
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte)((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte)v);
+    }
+
+    private void putZigzag(long v) {
+        putVarint((v << 1) ^ (v >> 63));
+    }
+
+    /**
+     * Append one event.
+     */
+    public void write(int kind, long site, long value) {
+        if (kind <= 0)
+            throw new IllegalArgumentException("event kinds must be positive");
+        if (buffer.remaining() < MAX_EVENT_SIZE) {
+            try {
+                roll();
+            } catch (IOException e) {
+                throw new RuntimeException("could not roll trace file", e);
+            }
+        }
+        putVarint(kind);
+        putZigzag(site - lastSite);
+        putZigzag(value - lastValue);
+        lastSite = site;
+        lastValue = value;
+    }
+
+    @Override
+    public void consume(long[] records, int offset, int count) {
+        int end = offset + count * EventBuffer.RECORD_SIZE;
+        for (int i = offset; i < end; i += EventBuffer.RECORD_SIZE)
+            write((int)records[i], records[i + 1], records[i + 2]);
+    }
+
+    @Override
+    public void close() {
+        try {
+            finishFile();
+        } catch (IOException e) {
+            throw new RuntimeException("could not finish trace file", e);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package checkers.runtime.rt;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Profiles which concrete classes reach each cast and instanceof site, to
+ * find megamorphic hot spots. Each site has a small inline cache of SLOTS
+ * (class, count) pairs, claimed with a compare-and-set the first time a
+ * class shows up, and an overflow counter for classes that find every slot
+ * taken. Counts are striped so that threads on different cores rarely
+ * update the same cell: there is one stripe per processor (up to
+ * MAX_STRIPES), and each stripe keeps its counters for all sites in an
+ * array region of its own, padded apart, so no two stripes share a cache
+ * line.
+ *
+ * Nothing ever takes a lock or stops the world: snapshot() simply reads the
+ * arrays, so a snapshot taken while the program runs is a consistent
+ * picture of each counter but not of all counters at one instant.
+ *
+ * TypeProfileInstrumentor (and, for casts, TypeProfileHooks) emit calls to
+ * the static hooks, which record into the global profile. It has room for
+ * the number of sites in the system property checkers.runtime.sites
+ * (default 16384); each site costs SLOTS references and
+ * (SLOTS + 1) longs per stripe. If checkers.runtime.typeprofile names a file, a
+ * report of the busiest sites is written there at exit, annotated from the
+ * site table named by checkers.runtime.sitetable if there is one.
+ */
+public class TypeProfile {
+    public static final int SLOTS = 4;
+    public static final int MAX_STRIPES = 16;
+    // Longs per cache line.
+    private static final int PAD = 8;
+    private static final int STRIPES = stripes();
+
+    // The number of processors, rounded up to a power of two.
+    private static int stripes() {
+        int cpus = java.lang.Runtime.getRuntime().availableProcessors();
+        int n = 1;
+        while (n < cpus && n < MAX_STRIPES)
+            n *= 2;
+        return n;
+    }
+
+    /** Stands in for the class of null. */
+    public static final class Null {
+        private Null() {
+        }
+    }
+
+    /** The profile the static hooks record into. */
+    public static final TypeProfile global =
+        new TypeProfile(Integer.getInteger("checkers.runtime.sites", 1 << 14));
+
+    static {
+        final String out = System.getProperty("checkers.runtime.typeprofile");
+        if (out != null) {
+            java.lang.Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    writeReport(new File(out));
+                }
+            });
+        }
+    }
+
+    private static void writeReport(File out) {
+        try {
+            SiteTable sites = null;
+            String table = System.getProperty("checkers.runtime.sitetable");
+            if (table != null)
+                sites = SiteTable.read(new File(table));
+            Writer w = new FileWriter(out);
+            try {
+                w.write(global.report(Integer.MAX_VALUE, sites));
+            } finally {
+                w.close();
+            }
+        } catch (IOException e) {
+            System.err.println("could not write type profile: " + e);
+        }
+    }
+
+    private final int capacity;
+    private final AtomicReferenceArray<Class<?>> classes;
+    // Stripe-major: stripe s's counter for cell c is at s * stride + c.
+    private final AtomicLongArray counts;
+    private final int countStride;
+    private final AtomicLongArray overflow;
+    private final int overflowStride;
+    // Events at sites beyond the capacity, one cache line per stripe.
+    private final AtomicLongArray dropped =
+        new AtomicLongArray(STRIPES * PAD);
+
+    /**
+     * @param capacity The number of sites (site IDs 0 to capacity - 1).
+     */
+    public TypeProfile(int capacity) {
+        this.capacity = capacity;
+        classes = new AtomicReferenceArray<Class<?>>(capacity * SLOTS);
+        countStride = capacity * SLOTS + PAD;
+        counts = new AtomicLongArray(countStride * STRIPES);
+        overflowStride = capacity + PAD;
+        overflow = new AtomicLongArray(overflowStride * STRIPES);
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int)(id ^ (id >>> 7)) & (STRIPES - 1);
+    }
+
+    /**
+     * Count one occurrence of the value's class at the site.
+     */
+    public void record(Object value, int site) {
+        record(value, site, 1);
+    }
+
+    /**
+     * Count n occurrences of the value's class at the site.
+     */
+    public void record(Object value, int site, long n) {
+        if (site < 0 || site >= capacity) {
+            dropped.incrementAndGet(stripe() * PAD);
+            return;
+        }
+        Class<?> cls = value == null ? Null.class : value.getClass();
+        int base = site * SLOTS;
+        for (int i = 0; i < SLOTS; i++) {
+            Class<?> c = classes.get(base + i);
+            if (c == null) {
+                if (classes.compareAndSet(base + i, null, cls))
+                    c = cls;
+                else
+                    c = classes.get(base + i);
+            }
+            if (c == cls) {
+                counts.addAndGet(stripe() * countStride + base + i, n);
+                return;
+            }
+        }
+        overflow.addAndGet(stripe() * overflowStride + site, n);
+    }
+
+    // Hooks for instrumented code, timed in HookMetrics. cast() sees the
+    // value after a successful cast (it is the bytecode agent's cast hook);
+    // observeCast() and observeTest() are placed on the operand, as in
+    // "(T)TypeProfile.observeCast(x, site)" or
+    // "TypeProfile.observeTest(x, site) instanceof T", so they also see
+    // values that fail the check.
+
+    public static <T> T cast(T value, int site) {
+        long start = HookMetrics.start();
+        global.record(value, site);
+        HookMetrics.record(HookMetrics.CAST, start);
+        return value;
+    }
+
+    public static <T> T observeCast(T value, int site) {
+        long start = HookMetrics.start();
+        global.record(value, site);
+        HookMetrics.record(HookMetrics.CAST, start);
+        return value;
+    }
+
+    public static <T> T observeTest(T value, int site) {
+        long start = HookMetrics.start();
+        global.record(value, site);
+        HookMetrics.record(HookMetrics.INSTANCEOF, start);
+        return value;
+    }
+
+    // Reports count more observations of a value already observed at the
+    // site, for checks hoisted out of loops (-Ajillhoist).
+    public static void repeat(Object value, int site, long count) {
+        long start = HookMetrics.start();
+        global.record(value, site, count);
+        HookMetrics.record(HookMetrics.REPEATED, start);
+    }
+
+    /** A class seen at a site and how often. */
+    public static final class Entry {
+        public final Class<?> cls;
+        public final long count;
+
+        Entry(Class<?> cls, long count) {
+            this.cls = cls;
+            this.count = count;
+        }
+    }
+
+    /** The profile of one site at the time of the snapshot. */
+    public static final class SiteProfile {
+        public final int site;
+        public final List<Entry> entries;
+        /** Occurrences of classes that did not get a slot. */
+        public final long overflow;
+
+        SiteProfile(int site, List<Entry> entries, long overflow) {
+            this.site = site;
+            this.entries = entries;
+            this.overflow = overflow;
+        }
+
+        public long total() {
+            long total = overflow;
+            for (Entry e : entries)
+                total += e.count;
+            return total;
+        }
+
+        /** More distinct classes than the inline cache can hold. */
+        public boolean megamorphic() {
+            return overflow > 0;
+        }
+    }
+
+    private static long sum(AtomicLongArray array, int stride, int cell) {
+        long total = 0;
+        for (int s = 0; s < STRIPES; s++)
+            total += array.get(s * stride + cell);
+        return total;
+    }
+
+    /**
+     * Read the profile of every site that has been reached, without
+     * stopping the recording threads.
+     */
+    public List<SiteProfile> snapshot() {
+        List<SiteProfile> out = new ArrayList<SiteProfile>();
+        for (int site = 0; site < capacity; site++) {
+            if (classes.get(site * SLOTS) == null)
+                continue;
+            List<Entry> entries = new ArrayList<Entry>(SLOTS);
+            for (int i = 0; i < SLOTS; i++) {
+                Class<?> c = classes.get(site * SLOTS + i);
+                if (c != null)
+                    entries.add(new Entry(c, sum(counts, countStride,
+                                                 site * SLOTS + i)));
+            }
+            out.add(new SiteProfile(site, entries,
+                                    sum(overflow, overflowStride, site)));
+        }
+        return out;
+    }
+
+    /** The number of events recorded at out-of-range site IDs. */
+    public long dropped() {
+        long total = 0;
+        for (int s = 0; s < STRIPES; s++)
+            total += dropped.get(s * PAD);
+        return total;
+    }
+
+    /**
+     * A human-readable report of the topN busiest sites, with their
+     * classes. The site table, if given, supplies source locations.
+     */
+    public String report(int topN, SiteTable sites) {
+        List<SiteProfile> profiles = snapshot();
+        final Map<SiteProfile, Long> totals = new HashMap<SiteProfile, Long>();
+        for (SiteProfile p : profiles)
+            totals.put(p, p.total());
+        Collections.sort(profiles, new Comparator<SiteProfile>() {
+            @Override
+            public int compare(SiteProfile a, SiteProfile b) {
+                return Long.compare(totals.get(b), totals.get(a));
+            }
+        });
+
+        StringBuilder sb = new StringBuilder();
+        for (SiteProfile p : profiles.subList(0, Math.min(topN, profiles.size()))) {
+            sb.append("site ").append(p.site);
+            SiteTable.Site s = sites == null ? null : sites.get(p.site);
+            if (s != null)
+                sb.append(" (").append(s).append(")");
+            sb.append(": ").append(totals.get(p));
+            if (p.megamorphic())
+                sb.append(" MEGAMORPHIC");
+            sb.append('\n');
+            for (Entry e : p.entries) {
+                sb.append("    ").append(e.cls.getName()).append(' ')
+                  .append(e.count).append('\n');
+            }
+            if (p.overflow > 0)
+                sb.append("    (other) ").append(p.overflow).append('\n');
+        }
+        return sb.toString();
+    }
+}
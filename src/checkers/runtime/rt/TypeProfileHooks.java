@@ -0,0 +1,17 @@
+package checkers.runtime.rt;
+
+/**
+ * Type profiling for the load-time agent. Only casts are profiled: the
+ * bytecode instanceof hook sees the result of the test, not the operand.
+ */
+public class TypeProfileHooks implements BytecodeHooks {
+    @Override
+    public String castHook() {
+        return TypeProfile.class.getName() + ".cast";
+    }
+
+    @Override
+    public String instanceOfHook() {
+        return null;
+    }
+}
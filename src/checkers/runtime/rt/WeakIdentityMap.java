@@ -0,0 +1,220 @@
+package checkers.runtime.rt;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * A concurrent map from objects, compared by identity and held weakly, to
+ * per-object metadata, such as the precision a runtime decided on in
+ * enterConstructor. It is built for the instrumentation's access pattern:
+ * one put when an object is constructed, many gets afterwards.
+ *
+ * The map is split into SEGMENTS independently locked hash tables, chosen
+ * by the key's identity hash, so puts from different threads rarely
+ * contend. Chains are immutable apart from the values, which are volatile,
+ * so get() takes no lock at all (the scheme of the original
+ * java.util.concurrent.ConcurrentHashMap). Entries whose keys have been
+ * collected are expunged lazily by the next write to their segment, or
+ * explicitly with expunge(), e.g. from a background thread.
+ *
+ * Null keys and values are not allowed.
+ */
+public class WeakIdentityMap<V> {
+    public static final int SEGMENTS = 64;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final class Entry<V> extends WeakReference<Object> {
+        final int hash;
+        final Entry<V> next;
+        volatile V value;
+
+        Entry(Object key, int hash, V value, Entry<V> next,
+              ReferenceQueue<Object> queue) {
+            super(key, queue);
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    private static final class Segment<V> {
+        private final ReferenceQueue<Object> queue =
+            new ReferenceQueue<Object>();
+        private volatile Entry<V>[] table = newTable(INITIAL_CAPACITY);
+        // Written under the lock; read without it by size().
+        private volatile int count = 0;
+
+        @SuppressWarnings("unchecked")
+        private static <V> Entry<V>[] newTable(int capacity) {
+            return (Entry<V>[])new Entry<?>[capacity];
+        }
+
+        V get(Object key, int hash) {
+            Entry<V>[] tab = table;
+            for (Entry<V> e = tab[hash & (tab.length - 1)]; e != null;
+                 e = e.next) {
+                if (e.hash == hash && e.get() == key) {
+                    V v = e.value;
+                    // A racing put may publish the entry before its value.
+                    return v != null ? v : readUnderLock(e);
+                }
+            }
+            return null;
+        }
+
+        private synchronized V readUnderLock(Entry<V> e) {
+            return e.value;
+        }
+
+        synchronized V put(Object key, int hash, V value) {
+            expungeStale();
+            Entry<V>[] tab = table;
+            int i = hash & (tab.length - 1);
+            for (Entry<V> e = tab[i]; e != null; e = e.next) {
+                if (e.hash == hash && e.get() == key) {
+                    V old = e.value;
+                    e.value = value;
+                    return old;
+                }
+            }
+            if (count >= tab.length * 3 / 4) {
+                tab = rehash(tab);
+                i = hash & (tab.length - 1);
+            }
+            tab[i] = new Entry<V>(key, hash, value, tab[i], queue);
+            table = tab; // Publish the new head.
+            count = count + 1;
+            return null;
+        }
+
+        synchronized V remove(Object key, int hash) {
+            expungeStale();
+            Entry<V>[] tab = table;
+            int i = hash & (tab.length - 1);
+            for (Entry<V> e = tab[i]; e != null; e = e.next) {
+                if (e.hash == hash && e.get() == key) {
+                    V old = e.value;
+                    unlink(tab, i, e);
+                    return old;
+                }
+            }
+            return null;
+        }
+
+        // Drop an entry from its chain by copying the entries before it
+        // (their next fields are final). Copies of entries whose keys have
+        // been collected are not made.
+        private void unlink(Entry<V>[] tab, int i, Entry<V> dead) {
+            Entry<V> head = dead.next;
+            int removed = 1;
+            for (Entry<V> e = tab[i]; e != dead; e = e.next) {
+                Object k = e.get();
+                if (k == null)
+                    removed++;
+                else
+                    head = new Entry<V>(k, e.hash, e.value, head, queue);
+            }
+            tab[i] = head;
+            table = tab;
+            count = count - removed;
+        }
+
+        // Double the table, copying live entries and dropping dead ones.
+        private Entry<V>[] rehash(Entry<V>[] old) {
+            Entry<V>[] tab = newTable(old.length * 2);
+            int live = 0;
+            for (Entry<V> head : old) {
+                for (Entry<V> e = head; e != null; e = e.next) {
+                    Object k = e.get();
+                    if (k == null)
+                        continue;
+                    int i = e.hash & (tab.length - 1);
+                    tab[i] = new Entry<V>(k, e.hash, e.value, tab[i], queue);
+                    live++;
+                }
+            }
+            count = live;
+            return tab;
+        }
+
+        synchronized void expungeStale() {
+            Reference<?> r;
+            while ((r = queue.poll()) != null) {
+                @SuppressWarnings("unchecked")
+                Entry<V> dead = (Entry<V>)r;
+                Entry<V>[] tab = table;
+                int i = dead.hash & (tab.length - 1);
+                // The entry may already be gone, e.g. copied by a rehash.
+                for (Entry<V> e = tab[i]; e != null; e = e.next) {
+                    if (e == dead) {
+                        unlink(tab, i, e);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private final Segment<V>[] segments;
+
+    @SuppressWarnings("unchecked")
+    public WeakIdentityMap() {
+        segments = (Segment<V>[])new Segment<?>[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment<V>();
+    }
+
+    private static int hash(Object key) {
+        int h = System.identityHashCode(key);
+        // Spread the bits, so that both the segment (high bits) and the
+        // bucket (low bits) are well distributed.
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments[(hash >>> 26) & (SEGMENTS - 1)];
+    }
+
+    public V get(Object key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /** Associate value with key; returns the previous value or null. */
+    public V put(Object key, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value);
+    }
+
+    public V remove(Object key) {
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    /**
+     * The number of entries, including any whose keys have been collected
+     * but not yet expunged.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<V> s : segments)
+            size += s.count;
+        return size;
+    }
+
+    /** Drop the entries of all collected keys now. */
+    public void expunge() {
+        for (Segment<V> s : segments)
+            s.expungeStale();
+    }
+}
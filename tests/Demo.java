@@ -1,8 +1,33 @@
 public class Demo {
   static Object o = (String) "a String!";
 
+  // Enum constants are created by the enum itself and must stay bare.
+  enum Color {
+    RED, GREEN(2), BLUE { int shade() { return 3; } };
+
+    final int n;
+    Color() { this(1); }
+    Color(int n) { this.n = n; }
+    int shade() { return n; }
+  }
+
+  // A creation that throws must not leave its hook stack entry behind.
+  static class Fails {
+    Fails() { throw new IllegalStateException(); }
+  }
+
   public static void main(String[] args) {
       Object o = (String) "a String!";
       String s = (String) o;
+      Object c = Color.BLUE;
+      int shade = ((Color) c).shade() + Color.valueOf("RED").shade();
+      int[] counts = new int[2];
+      counts[0] += counts.length;
+      int i = counts[0]++;
+      ++i;
+      try {
+          new Fails();
+      } catch (IllegalStateException e) {
+      }
   }
 }
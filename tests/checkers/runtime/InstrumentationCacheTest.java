@@ -0,0 +1,176 @@
+package checkers.runtime;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that InstrumentationCache reuses what it can. Instead of javac and
+ * the checker, the cache runs StubJavac, which "compiles" each source to a
+ * class file and writes the dependency and site records the checker would.
+ * A source's dependencies are listed on a "// uses:" line; every unit also
+ * depends on java.lang.String, which belongs to no unit. The classpath is a
+ * directory holding one "library" file.
+ *
+ * Usage: java -cp CLASSES checkers.runtime.InstrumentationCacheTest
+ */
+public class InstrumentationCacheTest {
+    public static void main(String[] args) throws Exception {
+        File dir = File.createTempFile("jillcache", "");
+        if (!dir.delete() || !dir.mkdirs())
+            throw new IOException("could not create " + dir);
+        File srcDir = new File(dir, "src");
+        srcDir.mkdirs();
+        File sites = new File(dir, "sites");
+        File lib = new File(dir, "lib");
+        lib.mkdirs();
+        File libClass = write(new File(lib, "Lib.class"), "v1");
+
+        File a = write(new File(srcDir, "A.java"), "// uses: B\nclass A {}\n");
+        write(new File(srcDir, "B.java"), "class B {}\n");
+        write(new File(srcDir, "C.java"), "// uses: A\nclass C {}\n");
+
+        check(build(dir, sites) == 3, "first build compiles everything");
+        List<String> first = lines(sites);
+        check(first.size() == 3, "first build has 3 sites: " + first);
+
+        check(build(dir, sites) == 0, "unchanged tree is not recompiled");
+        check(lines(sites).equals(first), "unchanged tree keeps its sites");
+
+        write(a, "// uses: B\nclass A { int x; }\n");
+        check(build(dir, sites) == 2, "A and C depend on the change");
+        List<String> second = lines(sites);
+        check(second.size() == 4, "new sites follow B's: " + second);
+        check(second.get(1).equals(first.get(1)), "B keeps its site");
+        check(second.get(0).startsWith("0\tunused\t"),
+              "A's old site is unused: " + second);
+
+        check(build(dir, sites) == 0, "rebuilt tree is not recompiled");
+        check(lines(sites).equals(second), "rebuilt tree keeps its sites");
+
+        write(libClass, "v2");
+        check(build(dir, sites) == 3, "a classpath change recompiles all");
+        check(build(dir, sites) == 0, "unchanged classpath is not rebuilt");
+
+        File cClass = new File(dir, "out/C.class");
+        check(cClass.isFile(), "C is compiled");
+        check(build(dir, sites, "A", "B") == 0, "removing C rebuilds nothing");
+        check(!cClass.exists(), "C's class file is removed");
+        check(new File(dir, "out/A.class").isFile(), "A's class file stays");
+        System.out.println("InstrumentationCacheTest: OK");
+    }
+
+    private static int build(File dir, File sites) throws Exception {
+        return build(dir, sites, "A", "B", "C");
+    }
+
+    private static int build(File dir, File sites, String... names)
+            throws Exception {
+        List<String> javac = Arrays.asList(
+            new File(System.getProperty("java.home"), "bin/java").getPath(),
+            "-cp", System.getProperty("java.class.path"),
+            StubJavac.class.getName());
+        List<String> options = Arrays.asList(
+            "-classpath", new File(dir, "lib").getPath(),
+            "-A" + InstrumentingChecker.SITES_FLAG + "=" + sites);
+        List<String> sources = new ArrayList<String>();
+        for (String name : names)
+            sources.add(new File(dir, "src/" + name + ".java").getPath());
+        InstrumentationCache cache = new InstrumentationCache(
+            new File(dir, "cache"), new File(dir, "out"), javac, options,
+            sources);
+        check(cache.build() == 0, "build succeeds");
+        return cache.recompiled();
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+
+    private static File write(File file, String text) throws IOException {
+        PrintWriter out = new PrintWriter(file);
+        try {
+            out.print(text);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null)
+                lines.add(line);
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    /** Stands in for javac running InstrumentingChecker: one site a unit. */
+    public static class StubJavac {
+        public static void main(String[] args) throws IOException {
+            File out = null;
+            File deps = null;
+            File sites = null;
+            int site = 0;
+            List<File> sources = new ArrayList<File>();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-d"))
+                    out = new File(args[++i]);
+                else if (arg.equals("-classpath") || arg.equals("-cp"))
+                    i++;
+                else if (arg.startsWith(flag(InstrumentingChecker.DEPS_FLAG)))
+                    deps = new File(value(arg));
+                else if (arg.startsWith(flag(InstrumentingChecker.SITES_FLAG)))
+                    sites = new File(value(arg));
+                else if (arg.startsWith(
+                             flag(InstrumentingChecker.SITE_BASE_FLAG)))
+                    site = Integer.parseInt(value(arg));
+                else if (arg.endsWith(".java"))
+                    sources.add(new File(arg));
+            }
+
+            PrintWriter depsOut = new PrintWriter(new FileWriter(deps, true));
+            PrintWriter sitesOut = new PrintWriter(new FileWriter(sites));
+            try {
+                for (File source : sources) {
+                    String name = source.getName().replace(".java", "");
+                    String uses = "java.lang.String";
+                    for (String line : lines(source)) {
+                        if (line.startsWith("// uses: "))
+                            uses += ";" + line.substring(9);
+                    }
+                    write(new File(out, name + ".class"), name);
+                    depsOut.println(source + "\t" + name + "\t" + uses + "\t" +
+                                    site + "\t" + (site + 1));
+                    sitesOut.println(site + "\tcast\t" + source.getName() +
+                                     "\t1\t(Object)x\tObject\tObject");
+                    site++;
+                }
+            } finally {
+                depsOut.close();
+                sitesOut.close();
+            }
+        }
+
+        private static String flag(String name) {
+            return "-A" + name + "=";
+        }
+
+        private static String value(String arg) {
+            return arg.substring(arg.indexOf('=') + 1);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package checkers.runtime.jillexample;
+
+import checkers.runtime.rt.BytecodeHooks;
+
+// The load-time agent's view of ExampleInstrumentor: instrument casts only.
+public class ExampleHooks implements BytecodeHooks {
+    @Override
+    public String castHook() {
+        return ExampleRuntime.class.getName() + ".didCast";
+    }
+
+    @Override
+    public String instanceOfHook() {
+        return null;
+    }
+}
@@ -2,19 +2,31 @@ package checkers.runtime.jillexample;
 
 import checkers.runtime.Instrumentor;
 
+import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.util.List;
 
 public class ExampleInstrumentor extends Instrumentor {
     final static String rtclass = checkers.runtime.jillexample.ExampleRuntime.class.getName();
 
+    // We only instrument casts, so locals never need references.
     @Override
-    public JCTree.JCExpression instCast(JCTree.JCTypeCast cast) {
+    public boolean observesLocalLoads(Symbol.VarSymbol var) {
+        return false;
+    }
+
+    @Override
+    public boolean observesLocalStores(Symbol.VarSymbol var) {
+        return false;
+    }
+
+    @Override
+    public JCTree.JCExpression instCast(JCTree.JCTypeCast cast, int site) {
         JCTree.JCExpression call =
             translator.maker.Apply(
                 null,
                 translator.dotsExp(rtclass + ".didCast"),
-                List.<JCTree.JCExpression>of(cast)
+                List.<JCTree.JCExpression>of(cast, translator.intExp(site))
             );
         return call;
     }
@@ -1,8 +1,9 @@
 package checkers.runtime.jillexample;
 
 public class ExampleRuntime {
-    public static Object didCast(Object value) {
-        System.out.println("performing cast on \"" + value + "\"");
+    public static Object didCast(Object value, int site) {
+        System.out.println("performing cast at site " + site + " on \"" +
+                           value + "\"");
         return value;
     }
 }